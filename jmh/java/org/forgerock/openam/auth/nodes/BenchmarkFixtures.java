@@ -0,0 +1,65 @@
+package org.forgerock.openam.auth.nodes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.callback.Callback;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.Utility.TestAssertions;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Keys, client assertions and tree contexts shared by the benchmarks.
+ */
+final class BenchmarkFixtures {
+
+    static final String KID = "benchmark";
+    static final String CLIENT_ID = "benchmark-client";
+
+    private BenchmarkFixtures() {
+    }
+
+    static KeyPair rsaKeyPair() throws GeneralSecurityException {
+        return TestAssertions.rsaKeyPair();
+    }
+
+    static Path writeJwks(RSAPublicKey publicKey) throws IOException {
+        return TestAssertions.writeJwks(publicKey, KID);
+    }
+
+    /**
+     * An RS256 client assertion for {@link #CLIENT_ID} that expires in an hour.
+     */
+    static String clientAssertion(PrivateKey privateKey) throws GeneralSecurityException {
+        return TestAssertions.sign(privateKey, KID, CLIENT_ID, System.currentTimeMillis() / 1000 + 3600);
+    }
+
+    /**
+     * A fresh tree context, as AM builds one for every node invocation.
+     */
+    static TreeContext context(Map<String, Object> sharedState, Map<String, String> headers,
+            List<? extends Callback> callbacks) {
+        ListMultimap<String, String> headerMap = ArrayListMultimap.create();
+        headers.forEach(headerMap::put);
+        return new TreeContext(new JsonValue(new LinkedHashMap<>(sharedState)),
+                new JsonValue(new LinkedHashMap<String, Object>()),
+                new ExternalRequestContext.Builder().headers(headerMap).build(), callbacks);
+    }
+
+    static TreeContext context(Map<String, Object> sharedState, Map<String, String> headers) {
+        return context(sharedState, headers, Collections.emptyList());
+    }
+}
@@ -0,0 +1,141 @@
+package org.forgerock.openam.auth.nodes;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.CoarseClock;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentRecord;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.ConsentWriteBehind;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.ParsedJwt;
+import org.forgerock.openam.auth.Utility.ReplayGuard;
+import org.forgerock.openam.auth.Utility.SignatureAlgorithm;
+import org.forgerock.openam.auth.Utility.TestAssertions;
+import org.forgerock.openam.auth.Utility.VerificationKey;
+import org.forgerock.openam.auth.Utility.VerificationKeyStore;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The building blocks of the nodes, measured on their own. {@code parseAssertion} covers what
+ * {@code getSignedJwt} used to do before the assertion was parsed once into a {@link ParsedJwt}.
+ * {@code verifyJWSs} verifies an RS256 assertion; the {@code verifyPS256}, {@code verifyES256} and
+ * {@code verifyEdDSA} variants compare the cost of the other accepted algorithms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeInternalsBenchmark {
+
+    private String encodedPublicKey;
+    private String token;
+    private ParsedJwt jwt;
+    private VerificationKey key;
+    private ParsedJwt ps256Jwt;
+    private VerificationKey ps256Key;
+    private ParsedJwt es256Jwt;
+    private VerificationKey es256Key;
+    private ParsedJwt edDsaJwt;
+    private VerificationKey edDsaKey;
+    private ClientAssertionValidatorNode clientAssertionValidatorNode;
+    private ConsentStatusUpdateNode consentStatusUpdateNode;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair keyPair = BenchmarkFixtures.rsaKeyPair();
+        encodedPublicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        token = BenchmarkFixtures.clientAssertion(keyPair.getPrivate());
+        jwt = ParsedJwt.parse(token);
+        key = new VerificationKey(BenchmarkFixtures.KID, keyPair.getPublic());
+        ps256Key = new VerificationKey(BenchmarkFixtures.KID, keyPair.getPublic());
+        ps256Jwt = assertion(SignatureAlgorithm.PS256, keyPair);
+        KeyPair es256KeyPair = TestAssertions.keyPair(SignatureAlgorithm.ES256);
+        es256Key = new VerificationKey(BenchmarkFixtures.KID, es256KeyPair.getPublic());
+        es256Jwt = assertion(SignatureAlgorithm.ES256, es256KeyPair);
+        KeyPair edDsaKeyPair = TestAssertions.keyPair(SignatureAlgorithm.EdDSA);
+        edDsaKey = new VerificationKey(BenchmarkFixtures.KID, edDsaKeyPair.getPublic());
+        edDsaJwt = assertion(SignatureAlgorithm.EdDSA, edDsaKeyPair);
+        HttpConnection httpConnection = new HttpConnection();
+        NodeMetrics nodeMetrics = new NodeMetrics(httpConnection);
+        AuditLog auditLog = new AuditLog();
+        CoarseClock clock = new CoarseClock();
+        clientAssertionValidatorNode = new ClientAssertionValidatorNode(new ClientAssertionValidatorNode.Config() {
+        }, new VerificationKeyStore(httpConnection), new ReplayGuard(clock), nodeMetrics, auditLog,
+                clock);
+        ConsentCache consentCache = new ConsentCache(clock);
+        ConsentReplica consentReplica = new ConsentReplica(httpConnection, clock);
+        consentStatusUpdateNode = new ConsentStatusUpdateNode(new ConsentStatusUpdateNode.Config() {
+        }, httpConnection, consentCache, consentReplica,
+                new ConsentWriteBehind(httpConnection, consentCache, consentReplica), nodeMetrics, auditLog);
+    }
+
+    private static ParsedJwt assertion(SignatureAlgorithm algorithm, KeyPair keyPair)
+            throws GeneralSecurityException {
+        return ParsedJwt.parse(TestAssertions.sign(algorithm, keyPair.getPrivate(), BenchmarkFixtures.KID,
+                BenchmarkFixtures.CLIENT_ID, System.currentTimeMillis() / 1000 + 3600));
+    }
+
+    @Benchmark
+    public PublicKey stringToRSAKey() throws GeneralSecurityException {
+        return VerificationKeyStore.stringToRSAKey(encodedPublicKey);
+    }
+
+    @Benchmark
+    public boolean verifyJWSs() {
+        return clientAssertionValidatorNode.verifyJWSs(key, jwt, SignatureAlgorithm.RS256);
+    }
+
+    @Benchmark
+    public boolean verifyPS256() {
+        return clientAssertionValidatorNode.verifyJWSs(ps256Key, ps256Jwt, SignatureAlgorithm.PS256);
+    }
+
+    @Benchmark
+    public boolean verifyES256() {
+        return clientAssertionValidatorNode.verifyJWSs(es256Key, es256Jwt, SignatureAlgorithm.ES256);
+    }
+
+    @Benchmark
+    public boolean verifyEdDSA() {
+        return clientAssertionValidatorNode.verifyJWSs(edDsaKey, edDsaJwt, SignatureAlgorithm.EdDSA);
+    }
+
+    @Benchmark
+    public ParsedJwt parseAssertion() {
+        return ParsedJwt.parse(token);
+    }
+
+    @Benchmark
+    public boolean verifyJWTExpiry() throws GeneralSecurityException {
+        return clientAssertionValidatorNode.verifyJWTExpiry(jwt);
+    }
+
+    @Benchmark
+    public ConsentRecord parseConsent() {
+        return new ConsentRecord("consent", BenchmarkFixtures.CLIENT_ID, "active", "2099-01-01T00:00:00Z");
+    }
+
+    @Benchmark
+    public String update() throws JSONException {
+        return consentStatusUpdateNode.update();
+    }
+}
@@ -0,0 +1,201 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.BenchmarkFixtures.CLIENT_ID;
+
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.NameCallback;
+
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ClientCache;
+import org.forgerock.openam.auth.Utility.ClientConsentLookup;
+import org.forgerock.openam.auth.Utility.ClientLookup;
+import org.forgerock.openam.auth.Utility.CoarseClock;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentLookup;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.ConsentWriteBehind;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.HttpTokenIssuer;
+import org.forgerock.openam.auth.Utility.InProcessTokenIssuer;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.ReplayGuard;
+import org.forgerock.openam.auth.Utility.StubIdmServer;
+import org.forgerock.openam.auth.Utility.VerificationKeyStore;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives each node's {@code process(TreeContext)} the way a tree does, with IDM and AM replaced by a
+ * {@link StubIdmServer} on the loopback interface.
+ *
+ * <p>With {@code cached=false} the cache TTLs are zero, so every invocation of the client and consent nodes
+ * goes to the stub. Replay protection is off, as every invocation presents the same assertion.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeProcessBenchmark {
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private StubIdmServer server;
+    private HttpConnection httpConnection;
+    private VerificationKeyStore keyStore;
+    private ConsentWriteBehind writeBehind;
+    private AuditLog auditLog;
+    private CoarseClock clock;
+    private String authorization;
+
+    private ClientAssertionValidatorNode clientAssertionValidatorNode;
+    private ClientValidationNode clientValidationNode;
+    private ConsentValidationNode consentValidationNode;
+    private ConsentStatusUpdateNode consentStatusUpdateNode;
+    private GenerateAccessTokenNode generateAccessTokenNode;
+    private InputCollectorNode inputCollectorNode;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = StubIdmServer.start(0, 8);
+        KeyPair keyPair = BenchmarkFixtures.rsaKeyPair();
+        System.setProperty("accesstoken.jwks.uri",
+                BenchmarkFixtures.writeJwks((RSAPublicKey) keyPair.getPublic()).toString());
+        authorization = "Bearer " + BenchmarkFixtures.clientAssertion(keyPair.getPrivate());
+
+        clock = new CoarseClock();
+        clock.start();
+        httpConnection = new HttpConnection();
+        httpConnection.start();
+        keyStore = new VerificationKeyStore(httpConnection);
+        keyStore.start();
+        ConsentCache consentCache = new ConsentCache(clock);
+        ConsentLookup consentLookup = new ConsentLookup(httpConnection);
+        ConsentReplica consentReplica = new ConsentReplica(httpConnection, clock);
+        writeBehind = new ConsentWriteBehind(httpConnection, consentCache, consentReplica);
+        NodeMetrics nodeMetrics = new NodeMetrics(httpConnection);
+        auditLog = new AuditLog();
+        int ttl = cached ? 300 : 0;
+
+        clientAssertionValidatorNode = new ClientAssertionValidatorNode(new ClientAssertionValidatorNode.Config() {
+            @Override
+            public boolean replayProtection() {
+                return false;
+            }
+        }, keyStore, new ReplayGuard(clock), nodeMetrics, auditLog, clock);
+        clientValidationNode = new ClientValidationNode(new ClientValidationNode.Config() {
+            @Override
+            public String urlValue() {
+                return server.clientUrl();
+            }
+
+            @Override
+            public int cacheTtlSeconds() {
+                return ttl;
+            }
+        }, new ClientLookup(httpConnection), new ClientCache(clock), consentCache, consentLookup,
+                new ClientConsentLookup(httpConnection), nodeMetrics, auditLog);
+        consentValidationNode = new ConsentValidationNode(new ConsentValidationNode.Config() {
+            @Override
+            public String urlValue() {
+                return server.consentUrl();
+            }
+
+            @Override
+            public int cacheTtlSeconds() {
+                return ttl;
+            }
+
+            @Override
+            public int refreshAheadSeconds() {
+                return 0;
+            }
+        }, consentLookup, consentCache, consentReplica, nodeMetrics, auditLog, clock);
+        consentStatusUpdateNode = new ConsentStatusUpdateNode(new ConsentStatusUpdateNode.Config() {
+            @Override
+            public String urlValue() {
+                return server.consentUpdateUrl();
+            }
+        }, httpConnection, consentCache, consentReplica, writeBehind, nodeMetrics, auditLog);
+        generateAccessTokenNode = new GenerateAccessTokenNode(new GenerateAccessTokenNode.Config() {
+            @Override
+            public String urlValue() {
+                return server.tokenUrl();
+            }
+        }, new HttpTokenIssuer(httpConnection), new InProcessTokenIssuer(new HttpTokenIssuer(httpConnection)),
+                nodeMetrics, auditLog);
+        inputCollectorNode = new InputCollectorNode(new InputCollectorNode.Config() {
+        }, nodeMetrics);
+    }
+
+    @TearDown
+    public void tearDown() {
+        auditLog.shutdown();
+        writeBehind.shutdown();
+        keyStore.shutdown();
+        httpConnection.shutdown();
+        clock.shutdown();
+        server.close();
+        System.clearProperty("accesstoken.jwks.uri");
+    }
+
+    @Benchmark
+    public Action clientAssertionValidator() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("authorization", authorization);
+        headers.put("code", "benchmark-code");
+        return clientAssertionValidatorNode.process(BenchmarkFixtures.context(Collections.emptyMap(), headers));
+    }
+
+    @Benchmark
+    public Action clientValidation() {
+        return clientValidationNode.process(BenchmarkFixtures.context(Collections.emptyMap(),
+                Collections.singletonMap("authorization", authorization)));
+    }
+
+    @Benchmark
+    public Action consentValidation() {
+        return consentValidationNode.process(BenchmarkFixtures.context(
+                Collections.singletonMap("client-id", CLIENT_ID), Collections.emptyMap()));
+    }
+
+    @Benchmark
+    public Action consentStatusUpdate() {
+        return consentStatusUpdateNode.process(BenchmarkFixtures.context(
+                Collections.singletonMap("consentId", "consent-" + CLIENT_ID), Collections.emptyMap()));
+    }
+
+    @Benchmark
+    public Action generateAccessToken() {
+        return generateAccessTokenNode.process(BenchmarkFixtures.context(
+                Collections.singletonMap("authorizationCode", "benchmark-code"), Collections.emptyMap()));
+    }
+
+    @Benchmark
+    public Action inputCollector() {
+        NameCallback callback = new NameCallback("Prompt");
+        callback.setName("benchmark-input");
+        return inputCollectorNode.process(BenchmarkFixtures.context(Collections.emptyMap(),
+                Collections.emptyMap(), Collections.singletonList(callback)));
+    }
+}
@@ -0,0 +1,405 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Creates or deletes large numbers of test consents in IDM, for load testing consent validation against
+ * realistic data volumes.
+ *
+ * <p>The consents are described by a spec rather than listed: {@code seed.clients} clients (default 1000) named
+ * {@code seed.clientPrefix} (default {@code seed-client-}) plus a number, each with {@code seed.consentsPerClient}
+ * consents (1). Consent {@code i} always gets the same client, consent id and expiry bucket, so a run can be
+ * repeated or resumed. A fraction {@code seed.expired} (default 0.05) of the consents expired up to 30 days ago, a
+ * fraction {@code seed.expiring} (0.05) expires within {@code seed.expiringSeconds} (300) of the run starting,
+ * and the rest expire at a random point within {@code seed.validDays} (365).</p>
+ *
+ * <p>{@code seed.action} is {@code create} (default) or {@code delete}. Requests are sent asynchronously with at
+ * most {@code seed.parallelism} (32) in flight; 5xx, 429 and transport failures are retried up to
+ * {@code seed.maxRetries} (3) times with exponential backoff. Parallelism above the endpoint's
+ * {@code accesstoken.http.maxConcurrent} bulkhead (64) only causes refusals and retries. Progress is written to
+ * the {@code seed.manifest} file (default {@code consent-seed.manifest}): one line per consent created, with its
+ * IDM {@code _id}, and one per consent deleted. A new run reads the manifest and skips the consents already
+ * created, or already deleted, so an interrupted run can be restarted with the same settings; a consent created
+ * in the last {@code seed.reportSeconds} (5) before a crash may not have been recorded and is created again.</p>
+ *
+ * <p>The target is {@code seed.url} (default {@link ConsentTestUtility#URL}). With {@code seed.stub=true} a
+ * {@link StubIdmServer} is started instead, with {@code seed.stub.latencyMs}, {@code .jitterMs} and
+ * {@code .errorRate} applied to its managed Consent route.</p>
+ */
+public final class ConsentSeeder {
+
+    private static final String PREFIX = "seed.";
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final HttpConnection httpConnection;
+    private final String url;
+    private final Spec spec;
+    private final Manifest manifest;
+    private final int parallelism;
+    private final Semaphore permits;
+    private final int maxRetries;
+    private final long nowMillis = System.currentTimeMillis();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private ConsentSeeder(HttpConnection httpConnection, String url, Spec spec, Manifest manifest, int parallelism,
+            int maxRetries) {
+        this.httpConnection = httpConnection;
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.spec = spec;
+        this.manifest = manifest;
+        this.parallelism = parallelism;
+        this.permits = new Semaphore(parallelism);
+        this.maxRetries = maxRetries;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean delete = "delete".equalsIgnoreCase(System.getProperty(PREFIX + "action", "create"));
+        int parallelism = Integer.getInteger(PREFIX + "parallelism", 32);
+        Spec spec = new Spec(Integer.getInteger(PREFIX + "clients", 1000),
+                Integer.getInteger(PREFIX + "consentsPerClient", 1),
+                System.getProperty(PREFIX + "clientPrefix", "seed-client-"),
+                Double.parseDouble(System.getProperty(PREFIX + "expired", "0.05")),
+                Double.parseDouble(System.getProperty(PREFIX + "expiring", "0.05")),
+                TimeUnit.SECONDS.toMillis(Long.getLong(PREFIX + "expiringSeconds", 300)),
+                Long.getLong(PREFIX + "validDays", 365));
+        Manifest manifest = Manifest.open(Paths.get(System.getProperty(PREFIX + "manifest", "consent-seed.manifest")));
+
+        StubIdmServer stub = Boolean.getBoolean(PREFIX + "stub") ? startStub(parallelism) : null;
+        HttpConnection httpConnection = new HttpConnection();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consent-seed-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            httpConnection.start();
+            ConsentSeeder seeder = new ConsentSeeder(httpConnection,
+                    stub != null ? stub.managedConsentUrl() : System.getProperty(PREFIX + "url", ConsentTestUtility.URL),
+                    spec, manifest, parallelism, Integer.getInteger(PREFIX + "maxRetries", 3));
+            long start = System.nanoTime();
+            long reportSeconds = Long.getLong(PREFIX + "reportSeconds", 5);
+            reporter.scheduleAtFixedRate(() -> seeder.progress(start), reportSeconds, reportSeconds,
+                    TimeUnit.SECONDS);
+            int submitted = delete ? seeder.deleteAll() : seeder.createAll();
+            seeder.progress(start);
+            seeder.report(delete ? "Deleted" : "Created", submitted, start);
+        } finally {
+            reporter.shutdownNow();
+            manifest.close();
+            httpConnection.shutdown();
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+
+    /**
+     * Creates every consent of the spec that the manifest does not list yet.
+     *
+     * @return the number of consents submitted.
+     */
+    private int createAll() throws InterruptedException {
+        int total = spec.total();
+        int submitted = 0;
+        System.out.printf(Locale.ROOT, "Creating %d consents for %d clients, %d already in the manifest%n", total,
+                spec.clients, manifest.createdCount());
+        for (int i = 0; i < total; i++) {
+            if (manifest.isCreated(i)) {
+                continue;
+            }
+            int index = i;
+            String body;
+            try {
+                body = consent(index).toString();
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            permits.acquire();
+            submitted++;
+            send(() -> HttpConnection.sendRequest(url, "POST", ConsentTestUtility.JSON_HEADERS, body), 0,
+                    response -> manifest.created(index, new JSONObject(response.body()).optString("_id", null)));
+        }
+        permits.acquire(parallelism);
+        permits.release(parallelism);
+        return submitted;
+    }
+
+    /**
+     * Deletes every consent the manifest lists as created and not yet deleted.
+     *
+     * @return the number of consents submitted.
+     */
+    private int deleteAll() throws InterruptedException {
+        Map<Integer, String> pending = manifest.pendingDeletes();
+        System.out.printf(Locale.ROOT, "Deleting %d consents%n", pending.size());
+        for (Map.Entry<Integer, String> entry : pending.entrySet()) {
+            int index = entry.getKey();
+            String id = entry.getValue();
+            permits.acquire();
+            send(() -> HttpConnection.sendRequest(url + id, "DELETE", null, null), 0,
+                    response -> manifest.deleted(index));
+        }
+        permits.acquire(parallelism);
+        permits.release(parallelism);
+        return pending.size();
+    }
+
+    /**
+     * Sends one request, retrying it with backoff, and releases its permit once it has succeeded or given up.
+     * A 404 on delete counts as success.
+     */
+    private void send(RequestFactory request, int attempt, ResponseHandler onSuccess) {
+        httpConnection.sendAsync(request.create(), HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> {
+                    int status = error == null ? response.statusCode() : HttpCallStats.NO_RESPONSE;
+                    boolean ok = status / 100 == 2 || (status == 404 && "DELETE".equals(response.request().method()));
+                    if (ok) {
+                        try {
+                            onSuccess.handle(response);
+                            succeeded.increment();
+                        } catch (Exception e) {
+                            fail(e.getClass().getSimpleName());
+                        }
+                    } else if ((error != null || EndpointGuard.isFailure(status)) && attempt < maxRetries) {
+                        retries.increment();
+                        long backoffMillis = 100L << attempt;
+                        CompletableFuture.delayedExecutor(backoffMillis, TimeUnit.MILLISECONDS)
+                                .execute(() -> send(request, attempt + 1, onSuccess));
+                        return;
+                    } else {
+                        fail(error != null ? cause(error).getClass().getSimpleName() : "HTTP " + status);
+                    }
+                    permits.release();
+                });
+    }
+
+    private void fail(String reason) {
+        failed.increment();
+        failures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    private JSONObject consent(int index) throws JSONException {
+        String now = Instant.ofEpochMilli(nowMillis).toString();
+        return ConsentTestUtility.consent("seed-person-" + index, "Seed", "seed-person-" + index + "@example.com",
+                now, now, "accounts", "seed-org", spec.clientId(index), spec.clientId(index),
+                "AwaitingAuthorisation", spec.consentId(index), now,
+                Instant.ofEpochMilli(spec.expiresAt(index, nowMillis)).toString());
+    }
+
+    private void progress(long start) {
+        try {
+            manifest.flush();
+        } catch (IOException e) {
+            System.out.println("Failed to write the manifest: " + e.getMessage());
+        }
+        long done = succeeded.sum() + failed.sum();
+        double seconds = Math.max(1, System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%8.1f s %10d done %10.1f/s %8d failed %8d retries%n", seconds, done,
+                done / seconds, failed.sum(), retries.sum());
+    }
+
+    private void report(String verb, int submitted, long start) {
+        double seconds = Math.max(1, System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%n%s %d of %d consents in %.1f s: %.1f/s, %d failed, %d retries%n", verb,
+                succeeded.sum(), submitted, seconds, succeeded.sum() / seconds, failed.sum(), retries.sum());
+        failures.forEach((reason, count) -> System.out.printf(Locale.ROOT, "  %-40s %8d%n", reason, count.sum()));
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static StubIdmServer startStub(int parallelism) throws IOException {
+        StubIdmServer stub = StubIdmServer.start(0, parallelism);
+        String prefix = PREFIX + "stub.";
+        stub.faults(StubIdmServer.Route.MANAGED_CONSENT)
+                .latency(Long.getLong(prefix + "latencyMs", 0), Long.getLong(prefix + "jitterMs", 0))
+                .errorRate(Double.parseDouble(System.getProperty(prefix + "errorRate", "0")));
+        return stub;
+    }
+
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpRequest create();
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler {
+        void handle(HttpResponse<String> response) throws JSONException;
+    }
+
+    /**
+     * The consents to seed. Everything about consent {@code i} is derived from {@code i}.
+     */
+    static final class Spec {
+        private final int clients;
+        private final int consentsPerClient;
+        private final String clientPrefix;
+        private final double expired;
+        private final double expiring;
+        private final long expiringMillis;
+        private final long validDays;
+
+        Spec(int clients, int consentsPerClient, String clientPrefix, double expired, double expiring,
+                long expiringMillis, long validDays) {
+            if (expired < 0 || expiring < 0 || expired + expiring > 1) {
+                throw new IllegalArgumentException("The expired and expiring fractions must add up to at most 1");
+            }
+            this.clients = clients;
+            this.consentsPerClient = consentsPerClient;
+            this.clientPrefix = clientPrefix;
+            this.expired = expired;
+            this.expiring = expiring;
+            this.expiringMillis = Math.max(1, expiringMillis);
+            this.validDays = Math.max(1, validDays);
+        }
+
+        int total() {
+            return Math.multiplyExact(clients, consentsPerClient);
+        }
+
+        String clientId(int index) {
+            return clientPrefix + index / consentsPerClient;
+        }
+
+        String consentId(int index) {
+            return clientId(index) + "-consent-" + index % consentsPerClient;
+        }
+
+        long expiresAt(int index, long nowMillis) {
+            long hash = mix(index);
+            double bucket = (hash >>> 11) * 0x1.0p-53;
+            long offset = (hash & Long.MAX_VALUE) >>> 20;
+            if (bucket < expired) {
+                return nowMillis - 1000 - offset % (30 * DAY_MILLIS);
+            }
+            if (bucket < expired + expiring) {
+                return nowMillis + offset % expiringMillis;
+            }
+            return nowMillis + expiringMillis + offset % (validDays * DAY_MILLIS);
+        }
+
+        private static long mix(long value) {
+            long z = value + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * The append-only record of which consents exist, read back when a run is resumed. Lines are
+     * {@code C <index> <_id>} and {@code D <index>}.
+     */
+    static final class Manifest implements AutoCloseable {
+        private final Map<Integer, String> created = new HashMap<>();
+        private final BitSet createdIndexes = new BitSet();
+        private final BitSet deletedIndexes = new BitSet();
+        private final BufferedWriter writer;
+
+        private Manifest(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        static Manifest open(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return new Manifest(Files.newBufferedWriter(path, StandardCharsets.UTF_8));
+            }
+            Manifest manifest = new Manifest(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND));
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                int index = fields.length > 1 ? Integer.parseInt(fields[1]) : -1;
+                if (fields.length == 3 && "C".equals(fields[0])) {
+                    manifest.created.put(index, fields[2]);
+                    manifest.createdIndexes.set(index);
+                    manifest.deletedIndexes.clear(index);
+                } else if (fields.length == 2 && "D".equals(fields[0])) {
+                    manifest.deletedIndexes.set(index);
+                }
+            }
+            return manifest;
+        }
+
+        synchronized boolean isCreated(int index) {
+            return createdIndexes.get(index) && !deletedIndexes.get(index);
+        }
+
+        synchronized int createdCount() {
+            BitSet live = (BitSet) createdIndexes.clone();
+            live.andNot(deletedIndexes);
+            return live.cardinality();
+        }
+
+        synchronized Map<Integer, String> pendingDeletes() {
+            Map<Integer, String> pending = new HashMap<>();
+            created.forEach((index, id) -> {
+                if (!deletedIndexes.get(index)) {
+                    pending.put(index, id);
+                }
+            });
+            return pending;
+        }
+
+        synchronized void created(int index, String id) {
+            if (id == null || id.isEmpty()) {
+                throw new IllegalStateException("No _id in the response");
+            }
+            created.put(index, id);
+            createdIndexes.set(index);
+            deletedIndexes.clear(index);
+            write("C " + index + " " + id);
+        }
+
+        synchronized void deleted(int index) {
+            deletedIndexes.set(index);
+            write("D " + index);
+        }
+
+        synchronized void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+
+        private void write(String line) {
+            try {
+                writer.write(line);
+                writer.newLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
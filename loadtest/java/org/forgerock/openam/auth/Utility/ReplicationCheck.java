@@ -0,0 +1,90 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks cache replication between several local JVMs, each standing in for one AM instance.
+ *
+ * <p>Start one JVM per instance within {@code replcheck.seconds} / 2 of each other, each with its own
+ * {@code replcheck.node} (0 to {@code replcheck.nodes} - 1, default 2 nodes) and the
+ * {@code accesstoken.cache.replication.*} settings of {@link CacheReplicator}. Every instance caches
+ * {@code replcheck.keys} (default 1000) keys of its own. For the first half of {@code replcheck.seconds} (default
+ * 20) it puts all of them every second; for the second half it only puts the odd ones and invalidates the even
+ * ones. At the end it reports how many of the other instances' odd keys it holds, which should be all of them,
+ * and how many of their even keys, which should be none, and exits with status 1 if either is off.</p>
+ *
+ * <pre>
+ * java -Dreplcheck.node=0 -Daccesstoken.cache.replication.bind=127.0.0.1:7401 \
+ *      -Daccesstoken.cache.replication.peers=127.0.0.1:7402 -Daccesstoken.cache.replication.secretFile=key ...
+ * java -Dreplcheck.node=1 -Daccesstoken.cache.replication.bind=127.0.0.1:7402 \
+ *      -Daccesstoken.cache.replication.peers=127.0.0.1:7401 -Daccesstoken.cache.replication.secretFile=key ...
+ * </pre>
+ */
+public final class ReplicationCheck {
+
+    private static final String PREFIX = "replcheck.";
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private ReplicationCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int node = Integer.getInteger(PREFIX + "node", 0);
+        int nodes = Integer.getInteger(PREFIX + "nodes", 2);
+        int keys = Integer.getInteger(PREFIX + "keys", 1000);
+        long seconds = Long.getLong(PREFIX + "seconds", 20);
+
+        CacheReplicator replicator = new CacheReplicator(TimeSource.SYSTEM);
+        if (!replicator.isEnabled()) {
+            System.out.println("Cache replication is not configured, see CacheReplicator");
+            System.exit(2);
+        }
+        replicator.start();
+        Cache<String, Boolean> cache = replicator.newCache("replcheck", keys * nodes * 2, TimeSource.SYSTEM,
+                CacheCodec.BOOLEAN);
+
+        long start = System.nanoTime();
+        long half = start + TimeUnit.SECONDS.toNanos(seconds) / 2;
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            boolean invalidating = System.nanoTime() >= half;
+            for (int i = 0; i < keys; i++) {
+                if (invalidating && i % 2 == 0) {
+                    cache.invalidate(key(node, i));
+                } else {
+                    cache.put(key(node, i), Boolean.TRUE, TTL_MILLIS);
+                }
+                if (i % 100 == 99) {
+                    Thread.sleep(1);
+                }
+            }
+            Thread.sleep(1000);
+        }
+
+        int odd = 0;
+        int even = 0;
+        for (int other = 0; other < nodes; other++) {
+            for (int i = 0; other != node && i < keys; i++) {
+                if (cache.peek(key(other, i)) != null) {
+                    if (i % 2 == 0) {
+                        even++;
+                    } else {
+                        odd++;
+                    }
+                }
+            }
+        }
+        int expected = (nodes - 1) * (keys / 2);
+        System.out.printf("Node %d holds %d of %d odd keys of the other nodes and %d even keys (expected 0)%n",
+                node, odd, expected, even);
+        System.out.printf("Sent %d, received %d, applied %d, dropped %d, rejected %d%n", replicator.getSentCount(),
+                replicator.getReceivedCount(), replicator.getAppliedCount(), replicator.getDroppedCount(),
+                replicator.getRejectedCount());
+        replicator.shutdown();
+        System.exit(odd == expected && even == 0 ? 0 : 1);
+    }
+
+    private static String key(int node, int i) {
+        return "node" + node + "-" + i;
+    }
+}
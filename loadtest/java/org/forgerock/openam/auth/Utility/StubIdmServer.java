@@ -0,0 +1,290 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-JVM stand-in for the IDM and AM endpoints the nodes call, for benchmarks and load tests.
+ *
+ * <p>It serves the client lookup ({@code /openidm/endpoint/softwareStatement?clientName=}), the consent
+ * lookup and update ({@code /openidm/endpoint/consent?clientId=} and {@code ?consentId=}), the combined client
+ * and consent resolution ({@code /openidm/endpoint/clientConsent?clientId=}) and the token
+ * endpoint ({@code /openam/oauth2/realms/root/realms/demo/access_token}) with small canned responses. The
+ * client named {@code unknown} is not found; every other client exists and has one consent,
+ * {@code consent-<clientId>}, that expires in 2099. Consents created and deleted through the managed object
+ * ({@code /openidm/managed/Consent/}) are acknowledged but not stored.</p>
+ *
+ * <p>Latency, 500 errors and 404s can be injected per {@link Route} through {@link #faults(Route)}, and changed
+ * while the server is running.</p>
+ */
+public final class StubIdmServer implements AutoCloseable {
+
+    public static final String UNKNOWN_CLIENT = "unknown";
+
+    /**
+     * The endpoints served by the stub.
+     */
+    public enum Route { CLIENT, CONSENT_LOOKUP, CONSENT_UPDATE, CLIENT_CONSENT, TOKEN, MANAGED_CONSENT }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong managedConsents = new AtomicLong();
+    private final Map<Route, Faults> faults = new EnumMap<>(Route.class);
+
+    private StubIdmServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+        for (Route route : Route.values()) {
+            faults.put(route, new Faults());
+        }
+    }
+
+    /**
+     * Starts a server on the loopback interface.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of handler threads.
+     */
+    public static StubIdmServer start(int port, int threads) throws IOException {
+        // Without TCP_NODELAY small responses wait out the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "stub-idm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        StubIdmServer stub = new StubIdmServer(server, executor);
+        server.createContext("/openidm/endpoint/softwareStatement", stub::client);
+        server.createContext("/openidm/endpoint/consent", stub::consent);
+        server.createContext("/openidm/endpoint/clientConsent", stub::clientConsent);
+        server.createContext("/openidm/managed/Consent", stub::managedConsent);
+        server.createContext("/openam/oauth2/realms/root/realms/demo/access_token", stub::token);
+        server.setExecutor(executor);
+        server.start();
+        return stub;
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String clientUrl() {
+        return baseUrl() + "/openidm/endpoint/softwareStatement?clientName=";
+    }
+
+    public String consentUrl() {
+        return baseUrl() + "/openidm/endpoint/consent?clientId=";
+    }
+
+    public String consentUpdateUrl() {
+        return baseUrl() + "/openidm/endpoint/consent?consentId=";
+    }
+
+    public String clientConsentUrl() {
+        return baseUrl() + "/openidm/endpoint/clientConsent?clientId=";
+    }
+
+    public String managedConsentUrl() {
+        return baseUrl() + "/openidm/managed/Consent/";
+    }
+
+    public String tokenUrl() {
+        return baseUrl() + "/openam/oauth2/realms/root/realms/demo/access_token";
+    }
+
+    /**
+     * The faults injected into the given route, none by default.
+     */
+    public Faults faults(Route route) {
+        return faults.get(route);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void client(HttpExchange exchange) throws IOException {
+        if (injectFaults(Route.CLIENT, exchange)) {
+            return;
+        }
+        String clientId = queryValue(exchange.getRequestURI(), "clientName");
+        if (clientId == null || UNKNOWN_CLIENT.equals(clientId)) {
+            respond(exchange, 404, "{\"code\":404,\"reason\":\"Not Found\"}");
+        } else {
+            respond(exchange, 200, "{\"_id\":\"" + clientId + "\",\"clientName\":\"" + clientId + "\"}");
+        }
+    }
+
+    private void consent(HttpExchange exchange) throws IOException {
+        String consentId = queryValue(exchange.getRequestURI(), "consentId");
+        boolean update = "PATCH".equals(exchange.getRequestMethod()) && consentId != null;
+        if (injectFaults(update ? Route.CONSENT_UPDATE : Route.CONSENT_LOOKUP, exchange)) {
+            return;
+        }
+        if (update) {
+            respond(exchange, 200, "{\"_id\":\"" + consentId + "\",\"status\":\"active\"}");
+            return;
+        }
+        String clientId = queryValue(exchange.getRequestURI(), "clientId");
+        respond(exchange, 200, consentDetails(clientId));
+    }
+
+    private void clientConsent(HttpExchange exchange) throws IOException {
+        if (injectFaults(Route.CLIENT_CONSENT, exchange)) {
+            return;
+        }
+        String clientId = queryValue(exchange.getRequestURI(), "clientId");
+        if (clientId == null || UNKNOWN_CLIENT.equals(clientId)) {
+            respond(exchange, 404, "{\"code\":404,\"reason\":\"Not Found\"}");
+        } else {
+            respond(exchange, 200, consentDetails(clientId));
+        }
+    }
+
+    private static String consentDetails(String clientId) {
+        if (clientId == null || UNKNOWN_CLIENT.equals(clientId)) {
+            return "{\"ClientDetails\":[]}";
+        }
+        return "{\"ClientDetails\":[{\"_id\":\"consent-" + clientId + "\",\"ClientId\":\"" + clientId
+                + "\",\"status\":\"AwaitingAuthorisation\",\"consentExpiryDateTime\":\"2099-01-01T00:00:00Z\"}]}";
+    }
+
+    private void managedConsent(HttpExchange exchange) throws IOException {
+        if (injectFaults(Route.MANAGED_CONSENT, exchange)) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        switch (exchange.getRequestMethod()) {
+            case "POST":
+                respond(exchange, 201, "{\"_id\":\"managed-consent-" + managedConsents.incrementAndGet() + "\"}");
+                break;
+            case "DELETE":
+                respond(exchange, "Consent".equals(id) ? 405 : 200, "{\"_id\":\"" + id + "\"}");
+                break;
+            default:
+                respond(exchange, 405, "{\"code\":405,\"reason\":\"Method Not Allowed\"}");
+        }
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        if (injectFaults(Route.TOKEN, exchange)) {
+            return;
+        }
+        respond(exchange, 200, "{\"access_token\":\"stub-token-" + tokens.incrementAndGet()
+                + "\",\"scope\":\"accounts\",\"token_type\":\"Bearer\",\"expires_in\":3599}");
+    }
+
+    /**
+     * Applies the route's latency, then answers with an injected error if the dice say so.
+     *
+     * @return {@code true} if an error response was sent.
+     */
+    private boolean injectFaults(Route route, HttpExchange exchange) throws IOException {
+        Faults fault = faults.get(route);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = fault.latencyMillis + (fault.jitterMillis > 0 ? random.nextLong(fault.jitterMillis + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double roll = random.nextDouble();
+        if (roll < fault.errorRate) {
+            respond(exchange, 500, "{\"code\":500,\"reason\":\"Internal Server Error\"}");
+            return true;
+        }
+        if (roll < fault.errorRate + fault.notFoundRate) {
+            respond(exchange, 404, "{\"code\":404,\"reason\":\"Not Found\"}");
+            return true;
+        }
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String queryValue(URI uri, String name) {
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return pair.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Latency and failures injected into one route.
+     */
+    public static final class Faults {
+        private volatile long latencyMillis;
+        private volatile long jitterMillis;
+        private volatile double errorRate;
+        private volatile double notFoundRate;
+
+        /**
+         * Delays every response by {@code millis} plus a uniform random jitter of up to {@code jitterMillis}.
+         */
+        public Faults latency(long millis, long jitterMillis) {
+            this.latencyMillis = millis;
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * The fraction of requests, between 0 and 1, answered with a 500.
+         */
+        public Faults errorRate(double rate) {
+            this.errorRate = rate;
+            return this;
+        }
+
+        /**
+         * The fraction of requests, between 0 and 1, answered with a 404.
+         */
+        public Faults notFoundRate(double rate) {
+            this.notFoundRate = rate;
+            return this;
+        }
+    }
+}
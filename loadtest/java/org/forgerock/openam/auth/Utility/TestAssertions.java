@@ -0,0 +1,109 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Signing keys and client assertions for benchmarks and load tests, with a matching JWKS file that
+ * {@link VerificationKeyStore} can load through {@code accesstoken.jwks.uri}.
+ */
+public final class TestAssertions {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private TestAssertions() {
+    }
+
+    public static KeyPair rsaKeyPair() throws GeneralSecurityException {
+        return SignatureAlgorithm.RS256.generateKeyPair();
+    }
+
+    /**
+     * A key pair for the given algorithm: 2048-bit RSA, P-256 or Ed25519.
+     */
+    public static KeyPair keyPair(SignatureAlgorithm algorithm) throws GeneralSecurityException {
+        return algorithm.generateKeyPair();
+    }
+
+    /**
+     * Writes a temporary JWKS document holding the RSA, P-256 or Ed25519 public key under the given {@code kid}.
+     */
+    public static Path writeJwks(PublicKey publicKey, String kid) throws IOException {
+        String jwk;
+        if (publicKey instanceof RSAPublicKey) {
+            RSAPublicKey rsa = (RSAPublicKey) publicKey;
+            jwk = "\"kty\":\"RSA\",\"n\":\"" + ENCODER.encodeToString(unsigned(rsa.getModulus().toByteArray()))
+                    + "\",\"e\":\"" + ENCODER.encodeToString(unsigned(rsa.getPublicExponent().toByteArray())) + "\"";
+        } else if (publicKey instanceof ECPublicKey) {
+            ECPublicKey ec = (ECPublicKey) publicKey;
+            jwk = "\"kty\":\"EC\",\"crv\":\"P-256\",\"x\":\""
+                    + ENCODER.encodeToString(fixed(ec.getW().getAffineX().toByteArray(), 32)) + "\",\"y\":\""
+                    + ENCODER.encodeToString(fixed(ec.getW().getAffineY().toByteArray(), 32)) + "\"";
+        } else {
+            byte[] encoded = publicKey.getEncoded();
+            jwk = "\"kty\":\"OKP\",\"crv\":\"Ed25519\",\"x\":\""
+                    + ENCODER.encodeToString(Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length)) + "\"";
+        }
+        Path jwks = Files.createTempFile("access-token-jwks", ".json");
+        jwks.toFile().deleteOnExit();
+        String json = "{\"keys\":[{" + jwk + ",\"use\":\"sig\",\"kid\":\"" + kid + "\"}]}";
+        Files.write(jwks, json.getBytes(StandardCharsets.UTF_8));
+        return jwks;
+    }
+
+    /**
+     * Signs an RS256 client assertion for the given client with a unique {@code jti}.
+     *
+     * @param expirySeconds The {@code exp} claim, in seconds since the epoch.
+     */
+    public static String sign(PrivateKey privateKey, String kid, String clientId, long expirySeconds)
+            throws GeneralSecurityException {
+        return sign(SignatureAlgorithm.RS256, privateKey, kid, clientId, expirySeconds);
+    }
+
+    /**
+     * Signs a client assertion for the given client with a unique {@code jti}.
+     *
+     * @param expirySeconds The {@code exp} claim, in seconds since the epoch.
+     */
+    public static String sign(SignatureAlgorithm algorithm, PrivateKey privateKey, String kid, String clientId,
+            long expirySeconds) throws GeneralSecurityException {
+        String header = "{\"alg\":\"" + algorithm + "\",\"typ\":\"JWT\",\"kid\":\"" + kid + "\"}";
+        String claims = "{\"iss\":\"" + clientId + "\",\"sub\":\"" + clientId + "\",\"jti\":\""
+                + UUID.randomUUID() + "\",\"exp\":" + expirySeconds + "}";
+        String signingInput = ENCODER.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + ENCODER.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+        Signature signature = algorithm.newSignature();
+        signature.initSign(privateKey);
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return signingInput + "." + ENCODER.encodeToString(signature.sign());
+    }
+
+    private static byte[] fixed(byte[] bytes, int length) {
+        byte[] trimmed = unsigned(bytes);
+        byte[] padded = new byte[length];
+        System.arraycopy(trimmed, 0, padded, length - trimmed.length, trimmed.length);
+        return padded;
+    }
+
+    private static byte[] unsigned(byte[] bytes) {
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+}
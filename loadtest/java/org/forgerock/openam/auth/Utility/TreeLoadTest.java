@@ -0,0 +1,294 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.ClientAssertionValidatorNode;
+import org.forgerock.openam.auth.nodes.ClientValidationNode;
+import org.forgerock.openam.auth.nodes.ConsentStatusUpdateNode;
+import org.forgerock.openam.auth.nodes.ConsentValidationNode;
+import org.forgerock.openam.auth.nodes.GenerateAccessTokenNode;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Runs the access token tree end to end against a {@link StubIdmServer}, without a real IDM or AM.
+ *
+ * <p>Trees are started at a constant arrival rate whether or not earlier ones have finished (open loop), and
+ * end-to-end latency is measured from each tree's intended start, so queueing behind a slow dependency shows up
+ * in the results instead of lowering the offered load. Each tree presents a freshly signed assertion for one
+ * of {@code clients} clients. Only trees started after the warm-up are reported.</p>
+ *
+ * <p>Settings are system properties: {@code loadtest.rate} (trees per second, default 200),
+ * {@code loadtest.durationSeconds} (30), {@code loadtest.warmupSeconds} (5), {@code loadtest.clients} (100),
+ * {@code loadtest.threads} (256), {@code loadtest.alg} (the assertion algorithm, {@code RS256}),
+ * {@code loadtest.cache} ({@code true}; {@code false} sets the node cache TTLs to zero),
+ * {@code loadtest.resolveConsent} ({@code false}; {@code true} resolves the client and consent in one request) and,
+ * for each route {@code client}, {@code consentLookup}, {@code consentUpdate}, {@code clientConsent} and
+ * {@code token},
+ * {@code loadtest.<route>.latencyMs}, {@code .jitterMs}, {@code .errorRate} and {@code .notFoundRate}.</p>
+ */
+public final class TreeLoadTest {
+
+    private static final String PREFIX = "loadtest.";
+    private static final String KID = "loadtest";
+    private static final String[] NAMES = {"ClientAssertionValidatorNode", "ClientValidationNode",
+        "ConsentValidationNode", "ConsentStatusUpdateNode", "GenerateAccessTokenNode"};
+
+    private final Node[] nodes;
+    private final LatencyHistogram[] nodeLatency = new LatencyHistogram[NAMES.length];
+    private final LongAdder[] falseOutcomes = new LongAdder[NAMES.length];
+    private final LongAdder[] errors = new LongAdder[NAMES.length];
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAccumulator lastCompletion = new LongAccumulator(Math::max, 0);
+
+    private TreeLoadTest(Node... nodes) {
+        this.nodes = nodes;
+        for (int i = 0; i < NAMES.length; i++) {
+            nodeLatency[i] = new LatencyHistogram();
+            falseOutcomes[i] = new LongAdder();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double rate = Double.parseDouble(System.getProperty(PREFIX + "rate", "200"));
+        long durationSeconds = Long.getLong(PREFIX + "durationSeconds", 30);
+        long warmupSeconds = Long.getLong(PREFIX + "warmupSeconds", 5);
+        int clients = Integer.getInteger(PREFIX + "clients", 100);
+        int threads = Integer.getInteger(PREFIX + "threads", 256);
+        SignatureAlgorithm algorithm = SignatureAlgorithm.valueOf(System.getProperty(PREFIX + "alg", "RS256"));
+        boolean resolveConsent = Boolean.getBoolean(PREFIX + "resolveConsent");
+        int ttl = Boolean.parseBoolean(System.getProperty(PREFIX + "cache", "true")) ? 300 : 0;
+
+        try (StubIdmServer server = StubIdmServer.start(0, threads)) {
+            configureFaults(server);
+            KeyPair keyPair = TestAssertions.keyPair(algorithm);
+            System.setProperty("accesstoken.jwks.uri", TestAssertions.writeJwks(keyPair.getPublic(), KID).toString());
+
+            CoarseClock clock = new CoarseClock();
+            clock.start();
+            HttpConnection httpConnection = new HttpConnection();
+            httpConnection.start();
+            VerificationKeyStore keyStore = new VerificationKeyStore(httpConnection);
+            keyStore.start();
+            ReplayGuard replayGuard = new ReplayGuard(clock);
+            replayGuard.start();
+            ConsentCache consentCache = new ConsentCache(clock);
+            ConsentLookup consentLookup = new ConsentLookup(httpConnection);
+            ConsentReplica consentReplica = new ConsentReplica(httpConnection, clock);
+            ConsentWriteBehind writeBehind = new ConsentWriteBehind(httpConnection, consentCache, consentReplica);
+            NodeMetrics nodeMetrics = new NodeMetrics(httpConnection);
+            AuditLog auditLog = new AuditLog();
+
+            TreeLoadTest test = new TreeLoadTest(
+                    new ClientAssertionValidatorNode(new ClientAssertionValidatorNode.Config() {
+                        @Override
+                        public boolean replayProtection() {
+                            return true;
+                        }
+                    }, keyStore, replayGuard, nodeMetrics, auditLog, clock),
+                    new ClientValidationNode(new ClientValidationNode.Config() {
+                        @Override
+                        public String urlValue() {
+                            return server.clientUrl();
+                        }
+
+                        @Override
+                        public int cacheTtlSeconds() {
+                            return ttl;
+                        }
+
+                        @Override
+                        public int negativeCacheTtlSeconds() {
+                            return ttl == 0 ? 0 : 30;
+                        }
+
+                        @Override
+                        public boolean resolveConsent() {
+                            return resolveConsent;
+                        }
+
+                        @Override
+                        public String resolutionUrlValue() {
+                            return server.clientConsentUrl();
+                        }
+                    }, new ClientLookup(httpConnection), new ClientCache(clock), consentCache, consentLookup,
+                            new ClientConsentLookup(httpConnection), nodeMetrics, auditLog),
+                    new ConsentValidationNode(new ConsentValidationNode.Config() {
+                        @Override
+                        public String urlValue() {
+                            return server.consentUrl();
+                        }
+
+                        @Override
+                        public int cacheTtlSeconds() {
+                            return ttl;
+                        }
+                    }, consentLookup, consentCache, consentReplica, nodeMetrics, auditLog, clock),
+                    new ConsentStatusUpdateNode(new ConsentStatusUpdateNode.Config() {
+                        @Override
+                        public String urlValue() {
+                            return server.consentUpdateUrl();
+                        }
+                    }, httpConnection, consentCache, consentReplica, writeBehind, nodeMetrics, auditLog),
+                    new GenerateAccessTokenNode(new GenerateAccessTokenNode.Config() {
+                        @Override
+                        public String urlValue() {
+                            return server.tokenUrl();
+                        }
+                    }, new HttpTokenIssuer(httpConnection),
+                            new InProcessTokenIssuer(new HttpTokenIssuer(httpConnection)), nodeMetrics,
+                            auditLog));
+
+            int total = (int) Math.ceil(rate * (warmupSeconds + durationSeconds));
+            System.out.printf("Signing %d assertions for %d clients%n", total, clients);
+            String[] assertions = sign(algorithm, keyPair.getPrivate(), total, clients);
+
+            System.out.printf(Locale.ROOT, "Running %.1f trees/s for %d s after a %d s warm-up%n",
+                    rate, durationSeconds, warmupSeconds);
+            long measureFrom = test.run(assertions, rate, warmupSeconds, threads);
+            test.report(rate, measureFrom);
+            System.out.printf("%nOutcomes by reason, including the warm-up:%n");
+            for (String name : NAMES) {
+                System.out.printf("%-30s %s%n", name, nodeMetrics.node(name).getOutcomes());
+            }
+
+            auditLog.shutdown();
+            writeBehind.shutdown();
+            replayGuard.shutdown();
+            keyStore.shutdown();
+            httpConnection.shutdown();
+            clock.shutdown();
+        }
+    }
+
+    /**
+     * Starts one tree every {@code 1 / rate} seconds and waits for all of them to finish.
+     *
+     * @return the {@link System#nanoTime()} from which trees are reported.
+     */
+    private long run(String[] assertions, double rate, long warmupSeconds, int threads)
+            throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "loadtest-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        for (int i = 0; i < assertions.length; i++) {
+            long intendedStart = start + i * intervalNanos;
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String assertion = assertions[i];
+            boolean measured = intendedStart >= measureFrom;
+            workers.execute(() -> runTree(assertion, intendedStart, measured));
+        }
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.MINUTES);
+        return measureFrom;
+    }
+
+    private void runTree(String assertion, long intendedStart, boolean measured) {
+        ListMultimap<String, String> headers = ArrayListMultimap.create();
+        headers.put("authorization", "Bearer " + assertion);
+        headers.put("code", "loadtest-code");
+        TreeContext context = new TreeContext(new JsonValue(new LinkedHashMap<String, Object>()),
+                new JsonValue(new LinkedHashMap<String, Object>()),
+                new ExternalRequestContext.Builder().headers(headers).build(), Collections.emptyList());
+        boolean success = true;
+        for (int i = 0; i < nodes.length && success; i++) {
+            long nodeStart = System.nanoTime();
+            try {
+                Action action = nodes[i].process(context);
+                success = "true".equals(action.outcome);
+                if (measured && !success) {
+                    falseOutcomes[i].increment();
+                }
+            } catch (Exception e) {
+                success = false;
+                if (measured) {
+                    errors[i].increment();
+                }
+            }
+            if (measured) {
+                nodeLatency[i].recordSince(nodeStart);
+            }
+        }
+        if (measured) {
+            endToEnd.recordSince(intendedStart);
+            completed.increment();
+            if (success) {
+                succeeded.increment();
+            }
+            lastCompletion.accumulate(System.nanoTime());
+        }
+    }
+
+    private void report(double rate, long measureFrom) {
+        double seconds = Math.max(1, lastCompletion.get() - measureFrom) / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%nOffered %.1f trees/s, completed %d trees in %.1f s: %.1f trees/s, "
+                + "%d succeeded%n%n", rate, completed.sum(), seconds, completed.sum() / seconds, succeeded.sum());
+        System.out.printf(Locale.ROOT, "%-30s %8s %7s %7s %9s %9s %9s %9s%n", "node", "count", "false", "errors",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (int i = 0; i < NAMES.length; i++) {
+            row(NAMES[i], nodeLatency[i], falseOutcomes[i].sum(), errors[i].sum());
+        }
+        row("end to end", endToEnd, completed.sum() - succeeded.sum(), 0);
+    }
+
+    private static void row(String name, LatencyHistogram histogram, long falseOutcomes, long errors) {
+        System.out.printf(Locale.ROOT, "%-30s %8d %7d %7d %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getCount(),
+                falseOutcomes, errors, histogram.getPercentileMillis(50), histogram.getPercentileMillis(99),
+                histogram.getPercentileMillis(99.9), histogram.getMaxNanos() / 1e6);
+    }
+
+    private static void configureFaults(StubIdmServer server) {
+        String[] names = {"client", "consentLookup", "consentUpdate", "clientConsent", "token"};
+        StubIdmServer.Route[] routes = {StubIdmServer.Route.CLIENT, StubIdmServer.Route.CONSENT_LOOKUP,
+            StubIdmServer.Route.CONSENT_UPDATE, StubIdmServer.Route.CLIENT_CONSENT, StubIdmServer.Route.TOKEN};
+        for (int i = 0; i < routes.length; i++) {
+            String prefix = PREFIX + names[i] + ".";
+            server.faults(routes[i])
+                    .latency(Long.getLong(prefix + "latencyMs", 0), Long.getLong(prefix + "jitterMs", 0))
+                    .errorRate(Double.parseDouble(System.getProperty(prefix + "errorRate", "0")))
+                    .notFoundRate(Double.parseDouble(System.getProperty(prefix + "notFoundRate", "0")));
+        }
+    }
+
+    private static String[] sign(SignatureAlgorithm algorithm, PrivateKey privateKey, int total, int clients) {
+        long expiry = System.currentTimeMillis() / 1000 + 3600;
+        return IntStream.range(0, total).parallel().mapToObj(i -> {
+            try {
+                return TestAssertions.sign(algorithm, privateKey, KID, "client-" + (i % clients), expiry);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }).toArray(String[]::new);
+    }
+}
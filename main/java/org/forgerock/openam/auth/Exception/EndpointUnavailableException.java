@@ -0,0 +1,8 @@
+package org.forgerock.openam.auth.Exception;
+
+public class EndpointUnavailableException extends RuntimeException {
+
+    public EndpointUnavailableException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,258 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Structured audit events of the access token tree, written off the login thread.
+ *
+ * <p>Nodes {@link #record} fixed-schema events into a preallocated ring buffer: recording copies a few
+ * references and primitives into a free slot and never allocates, locks or waits. When the buffer is full the
+ * event is dropped and counted. A single background thread drains the buffer and writes each event as one JSON
+ * line to the {@code accesstoken.audit} logger, so a slow log sink only ever delays that thread.</p>
+ *
+ * <p>Successful events can be sampled per {@link Type} with {@code accesstoken.audit.sampleRate.<TYPE>}, a
+ * fraction between 0 and 1 (default 1); failures are always kept. Secrets such as authorization codes and
+ * tokens are reduced to their first four characters when written, unless {@code accesstoken.audit.redact} is
+ * {@code false}. The buffer holds {@code accesstoken.audit.capacity} events (default 8192, rounded up to a power
+ * of two).</p>
+ */
+@Singleton
+public class AuditLog implements AuditLogMXBean {
+
+    /**
+     * The step of the tree an event describes.
+     */
+    public enum Type { CLIENT_ASSERTION, CLIENT, CONSENT, CONSENT_UPDATE, ACCESS_TOKEN }
+
+    private static final String PREFIX = "accesstoken.audit.";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final Logger sink = LoggerFactory.getLogger("accesstoken.audit");
+    private final Slot[] slots;
+    private final int mask;
+    private final Map<Type, Double> sampleRates = new EnumMap<>(Type.class);
+    private final boolean redact = Boolean.parseBoolean(System.getProperty(PREFIX + "redact", "true"));
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private volatile Thread writer;
+    private volatile boolean running;
+
+    @Inject
+    public AuditLog() {
+        int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger(PREFIX + "capacity", 8192)) * 2 - 1);
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i - capacity);
+        }
+        mask = capacity - 1;
+        for (Type type : Type.values()) {
+            sampleRates.put(type, Double.parseDouble(System.getProperty(PREFIX + "sampleRate." + type, "1")));
+        }
+        JmxSupport.register(this, "AuditLog");
+    }
+
+    /**
+     * Starts the background writer.
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(this::drainLoop, "access-token-audit");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the writer after it has written what is left in the buffer.
+     */
+    public synchronized void shutdown() {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * Queues an event. Never blocks.
+     *
+     * @param secret An authorization code or token the event refers to, redacted when written. May be null.
+     */
+    public void record(Type type, boolean success, String reason, String clientId, String consentId,
+            String secret, long durationNanos) {
+        if (writer == null) {
+            start();
+        }
+        if (success) {
+            double rate = sampleRates.get(type);
+            if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+                sampledOut.increment();
+                return;
+            }
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.timestampMillis = System.currentTimeMillis();
+        slot.type = type;
+        slot.success = success;
+        slot.reason = reason;
+        slot.clientId = clientId;
+        slot.consentId = consentId;
+        slot.secret = secret;
+        slot.durationNanos = durationNanos;
+        slot.published = sequence;
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    @Override
+    public int getBacklog() {
+        return (int) (head.get() - tail.get());
+    }
+
+    @Override
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (running) {
+            if (drain(line) == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain(line);
+    }
+
+    /**
+     * Writes every published event in order, stopping at the first slot whose producer has not finished.
+     */
+    private int drain(StringBuilder line) {
+        int count = 0;
+        long sequence = tail.get();
+        while (true) {
+            Slot slot = slots[(int) (sequence & mask)];
+            if (slot.published != sequence) {
+                return count;
+            }
+            line.setLength(0);
+            format(slot, line);
+            slot.reason = null;
+            slot.clientId = null;
+            slot.consentId = null;
+            slot.secret = null;
+            tail.lazySet(++sequence);
+            try {
+                sink.info(line.toString());
+                written.increment();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to write audit event", e);
+            }
+            count++;
+        }
+    }
+
+    private void format(Slot slot, StringBuilder out) {
+        out.append("{\"timestamp\":").append(slot.timestampMillis)
+                .append(",\"type\":\"").append(slot.type)
+                .append("\",\"success\":").append(slot.success)
+                .append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(slot.durationNanos));
+        field(out, "reason", slot.reason);
+        field(out, "clientId", slot.clientId);
+        field(out, "consentId", slot.consentId);
+        field(out, "secret", redact ? redact(slot.secret) : slot.secret);
+        out.append('}');
+    }
+
+    private static void field(StringBuilder out, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        out.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    static String redact(String secret) {
+        if (secret == null) {
+            return null;
+        }
+        return secret.length() <= 8 ? "****" : secret.substring(0, 4) + "****";
+    }
+
+    /**
+     * One preallocated event. Fields are written by the producer that claimed the slot and published by the
+     * volatile write of {@link #published}.
+     */
+    private static final class Slot {
+        private long timestampMillis;
+        private Type type;
+        private boolean success;
+        private String reason;
+        private String clientId;
+        private String consentId;
+        private String secret;
+        private long durationNanos;
+        private volatile long published;
+
+        private Slot(long published) {
+            this.published = published;
+        }
+    }
+}
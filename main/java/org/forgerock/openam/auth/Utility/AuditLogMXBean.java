@@ -0,0 +1,23 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link AuditLog}.
+ */
+public interface AuditLogMXBean {
+
+    long getWrittenCount();
+
+    /**
+     * Events dropped because the ring buffer was full.
+     */
+    long getDroppedCount();
+
+    /**
+     * Successful events skipped by sampling.
+     */
+    long getSampledOutCount();
+
+    int getBacklog();
+
+    int getCapacity();
+}
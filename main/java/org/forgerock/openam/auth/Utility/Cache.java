@@ -0,0 +1,42 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * A bounded cache where every entry carries its own time to live.
+ *
+ * <p>{@link LocalCache} keeps the entries of one AM instance. {@link ReplicatedCache} also sends its puts and
+ * invalidations to the other instances of the cluster, so a lookup made on one instance serves the others and an
+ * update made on one is seen by all. {@link CacheReplicator#newCache} picks the implementation from the
+ * configuration.</p>
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public interface Cache<K, V> {
+
+    /**
+     * Returns the cached value, or {@code null} if the key is absent or its entry has expired.
+     */
+    V getIfPresent(K key);
+
+    /**
+     * Returns the cached value like {@link #getIfPresent} but without counting the access.
+     */
+    V peek(K key);
+
+    /**
+     * Caches the value for the given number of milliseconds. The value may be rejected if the cache is full.
+     */
+    void put(K key, V value, long ttlMillis);
+
+    void invalidate(K key);
+
+    void invalidateAll();
+
+    long size();
+
+    long hitCount();
+
+    long missCount();
+
+    long evictionCount();
+}
@@ -0,0 +1,29 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes the values of a {@link ReplicatedCache} to the replication messages and reads them back.
+ *
+ * @param <V> the value type.
+ */
+public interface CacheCodec<V> {
+
+    CacheCodec<Boolean> BOOLEAN = new CacheCodec<Boolean>() {
+        @Override
+        public void write(DataOutput out, Boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        @Override
+        public Boolean read(DataInput in) throws IOException {
+            return in.readBoolean();
+        }
+    };
+
+    void write(DataOutput out, V value) throws IOException;
+
+    V read(DataInput in) throws IOException;
+}
@@ -0,0 +1,431 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends cache updates to the other AM instances of the cluster over UDP, and applies theirs.
+ *
+ * <p>Replication is off unless {@code accesstoken.cache.replication.bind} (the local {@code host:port} to receive
+ * on), {@code peers} (the comma-separated {@code host:port} of the other instances) and {@code secretFile} (a file
+ * holding a key shared by all instances, readable only by AM) are set. Each update is one datagram sent to every
+ * peer, carrying the sender's id, a sequence number and the time it was sent, and authenticated with HMAC-SHA256
+ * under the secret. Datagrams that fail the check, that arrive more than {@code maxAgeMillis} (default 10000)
+ * after they were sent, or whose sequence number is not above the last one accepted from their sender, are
+ * dropped, so without the secret updates can neither be forged nor replayed. Updates wait in a queue of
+ * {@code queueSize} (10000) for a background sender, so the network never delays a login; when the queue is full
+ * they are dropped and counted.</p>
+ *
+ * <p>Delivery is best effort. A lost update, or one overtaken by a later update from the same sender, leaves the
+ * peer's entry to expire on its TTL, and when two instances update the same key at once the last update to arrive
+ * wins. Entries keep the time to live they had left on the sender.</p>
+ */
+@Singleton
+public class CacheReplicator implements CacheReplicatorMXBean {
+
+    /**
+     * What an update does to the receiving cache.
+     */
+    public enum Op { PUT, INVALIDATE, CLEAR }
+
+    /**
+     * Applies the updates received for one cache.
+     */
+    public interface Listener {
+
+        /**
+         * @param value The value written by the sender's {@link CacheCodec}, for a {@code PUT} of a cache that
+         * has values.
+         */
+        void apply(Op op, String key, long ttlMillis, DataInput value) throws IOException;
+    }
+
+    private static final String PREFIX = "accesstoken.cache.replication.";
+    private static final byte VERSION = 2;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    /** Keeps datagrams under the usual path MTU so they are not fragmented. */
+    private static final int MAX_DATAGRAM = 1400;
+    /** How many senders are tracked before those gone quiet are forgotten; each restart is a new sender. */
+    private static final int MAX_SENDERS = 64;
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final TimeSource clock;
+    private final InetSocketAddress bind;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec secret;
+    private final long maxAgeMillis;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong nextSequence = new AtomicLong();
+    /** The last sequence number accepted from each sender, only used by the receiving thread. */
+    private final Map<Long, LastSeen> lastSeen = new HashMap<>();
+    private final BlockingQueue<byte[]> queue;
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile DatagramSocket socket;
+    private volatile Thread sender;
+
+    @Inject
+    public CacheReplicator(TimeSource clock) {
+        this(clock, System.getProperty(PREFIX + "bind", ""), System.getProperty(PREFIX + "peers", ""),
+                readSecret(System.getProperty(PREFIX + "secretFile", "")),
+                Long.getLong(PREFIX + "maxAgeMillis", 10000), Integer.getInteger(PREFIX + "queueSize", 10000));
+        JmxSupport.register(this, "CacheReplicator");
+    }
+
+    CacheReplicator(TimeSource clock, String bind, String peers, String secret, long maxAgeMillis,
+            int queueSize) {
+        this.clock = clock;
+        this.maxAgeMillis = maxAgeMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            if (!peer.trim().isEmpty()) {
+                addresses.add(address(peer.trim()));
+            }
+        }
+        if (bind.isEmpty() || addresses.isEmpty()) {
+            this.bind = null;
+        } else if (secret.isEmpty()) {
+            logger.error("Cache replication is disabled: {}secretFile is not set or empty", PREFIX);
+            this.bind = null;
+        } else {
+            this.bind = address(bind);
+        }
+        this.peers = Collections.unmodifiableList(addresses);
+        this.secret = secret.isEmpty() ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+    }
+
+    private static String readSecret(String file) {
+        if (file.isEmpty()) {
+            return "";
+        }
+        try {
+            return new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            LoggerFactory.getLogger("amAuth").error("Failed to read the cache replication secret from {}", file, e);
+            return "";
+        }
+    }
+
+    /**
+     * Returns a replicator that never replicates, for caches built outside of AM.
+     */
+    public static CacheReplicator local() {
+        return new CacheReplicator(TimeSource.SYSTEM, "", "", "", 0, 1);
+    }
+
+    /**
+     * Creates a cache for values of the given type: a {@link ReplicatedCache} if replication is configured, a
+     * {@link LocalCache} otherwise.
+     *
+     * @param name The name of the cache, the same on every instance.
+     */
+    public <V> Cache<String, V> newCache(String name, int maximumSize, TimeSource clock, CacheCodec<V> codec) {
+        LocalCache<String, V> local = new LocalCache<>(maximumSize, clock);
+        return isEnabled() ? new ReplicatedCache<>(name, local, this, codec) : local;
+    }
+
+    /**
+     * Sets the listener that applies the updates other instances send for the named cache.
+     */
+    public void register(String name, Listener listener) {
+        listeners.put(name, listener);
+        if (isEnabled() && socket == null) {
+            start();
+        }
+    }
+
+    public synchronized void start() {
+        if (!isEnabled() || socket != null) {
+            return;
+        }
+        DatagramSocket opened;
+        try {
+            opened = new DatagramSocket(bind);
+            opened.setReceiveBufferSize(1 << 20);
+        } catch (SocketException e) {
+            logger.error("Cache replication is disabled: cannot listen on {}", bind, e);
+            return;
+        }
+        socket = opened;
+        Thread receiver = new Thread(() -> receiveLoop(opened), "access-token-cache-replication-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread thread = new Thread(() -> sendLoop(opened), "access-token-cache-replication-send");
+        thread.setDaemon(true);
+        sender = thread;
+        thread.start();
+        logger.info("Cache replication listening on {} for {} peers", bind, peers.size());
+    }
+
+    public synchronized void shutdown() {
+        if (socket == null) {
+            return;
+        }
+        sender.interrupt();
+        socket.close();
+        sender = null;
+        socket = null;
+    }
+
+    /**
+     * Queues an update for the other instances. Never blocks.
+     *
+     * @param value The value of a {@code PUT}, or {@code null}.
+     * @param codec Writes the value; may be {@code null} when the value is.
+     */
+    public <V> void publish(String name, Op op, String key, long ttlMillis, V value, CacheCodec<V> codec) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (socket == null) {
+            start();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeLong(nodeId);
+            out.writeLong(nextSequence.incrementAndGet());
+            out.writeLong(clock.currentTimeMillis());
+            out.writeUTF(name);
+            out.writeByte(op.ordinal());
+            out.writeUTF(key);
+            out.writeLong(ttlMillis);
+            if (value != null) {
+                codec.write(out, value);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write the replicated {} of {} in cache {}", op, key, name, e);
+            dropped.increment();
+            return;
+        }
+        if (bytes.size() + MAC_LENGTH > MAX_DATAGRAM || !queue.offer(bytes.toByteArray())) {
+            dropped.increment();
+        }
+    }
+
+    private void sendLoop(DatagramSocket socket) {
+        Mac mac = newMac();
+        while (!Thread.currentThread().isInterrupted()) {
+            byte[] message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            byte[] datagram = Arrays.copyOf(message, message.length + MAC_LENGTH);
+            mac.update(message);
+            System.arraycopy(mac.doFinal(), 0, datagram, message.length, MAC_LENGTH);
+            for (InetSocketAddress peer : peers) {
+                try {
+                    socket.send(new DatagramPacket(datagram, datagram.length, peer));
+                    sent.increment();
+                } catch (IOException e) {
+                    if (socket.isClosed()) {
+                        return;
+                    }
+                    dropped.increment();
+                    logger.debug("Failed to send a cache update to {}: {}", peer, e.toString());
+                }
+            }
+        }
+    }
+
+    private void receiveLoop(DatagramSocket socket) {
+        Mac mac = newMac();
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.warn("Failed to receive a cache update", e);
+                }
+                continue;
+            }
+            received.increment();
+            try {
+                if (!receive(mac, buffer, packet.getLength())) {
+                    rejected.increment();
+                }
+            } catch (IOException | RuntimeException e) {
+                rejected.increment();
+                logger.debug("Rejected a malformed cache update from {}: {}", packet.getSocketAddress(),
+                        e.toString());
+            }
+        }
+    }
+
+    /**
+     * Checks and applies one datagram.
+     *
+     * @return {@code false} if the datagram is not authentic, too old or a replay.
+     */
+    boolean receive(Mac mac, byte[] datagram, int length) throws IOException {
+        int messageLength = length - MAC_LENGTH;
+        if (messageLength <= 0) {
+            return false;
+        }
+        mac.update(datagram, 0, messageLength);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(datagram, messageLength, length))) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(datagram, 0, messageLength));
+        if (in.readByte() != VERSION) {
+            return false;
+        }
+        long sender = in.readLong();
+        long sequence = in.readLong();
+        if (sender == nodeId) {
+            return true;
+        }
+        long now = clock.currentTimeMillis();
+        long age = now - in.readLong();
+        if (Math.abs(age) > maxAgeMillis || !accept(sender, sequence, now)) {
+            return false;
+        }
+        String name = in.readUTF();
+        Op op = Op.values()[in.readByte()];
+        String key = in.readUTF();
+        long ttlMillis = in.readLong() - Math.max(0, age);
+        Listener listener = listeners.get(name);
+        if (listener != null && (op != Op.PUT || ttlMillis > 0)) {
+            listener.apply(op, key, ttlMillis, in);
+            applied.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Records the sequence number of an authentic datagram.
+     *
+     * @return {@code false} if a datagram with the same or a later sequence number was accepted from its sender.
+     */
+    private boolean accept(long sender, long sequence, long now) {
+        LastSeen last = lastSeen.get(sender);
+        if (last == null) {
+            if (lastSeen.size() >= MAX_SENDERS) {
+                // senders silent for longer than datagrams stay valid cannot be replayed any more
+                lastSeen.values().removeIf(known -> now - known.acceptedAt > 2 * maxAgeMillis);
+            }
+            lastSeen.put(sender, new LastSeen(sequence, now));
+            return true;
+        }
+        if (sequence <= last.sequence) {
+            return false;
+        }
+        last.sequence = sequence;
+        last.acceptedAt = now;
+        return true;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static InetSocketAddress address(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon),
+                Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static final class LastSeen {
+        private long sequence;
+        private long acceptedAt;
+
+        private LastSeen(long sequence, long acceptedAt) {
+            this.sequence = sequence;
+            this.acceptedAt = acceptedAt;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return bind != null;
+    }
+
+    @Override
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    @Override
+    public long getAppliedCount() {
+        return applied.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+}
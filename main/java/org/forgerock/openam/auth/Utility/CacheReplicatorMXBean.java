@@ -0,0 +1,35 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link CacheReplicator}.
+ */
+public interface CacheReplicatorMXBean {
+
+    boolean isEnabled();
+
+    int getPeerCount();
+
+    /**
+     * Datagrams sent, one per update and peer.
+     */
+    long getSentCount();
+
+    long getReceivedCount();
+
+    /**
+     * Updates received from other instances and applied to a local cache.
+     */
+    long getAppliedCount();
+
+    /**
+     * Updates not sent because the queue was full, they were too large or sending failed.
+     */
+    long getDroppedCount();
+
+    /**
+     * Datagrams received that were not authentic, too old, replayed or malformed.
+     */
+    long getRejectedCount();
+
+    int getQueueSize();
+}
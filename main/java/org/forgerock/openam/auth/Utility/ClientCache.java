@@ -0,0 +1,89 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Remembers which client ids IDM knows about, so that ClientValidationNode does not need a round trip for
+ * every token request.
+ *
+ * <p>Both answers are cached: clients that exist with the positive TTL and clients IDM returned 404 for with
+ * the (normally shorter) negative TTL. The size is bounded by {@code accesstoken.cache.clients.maxSize}
+ * (default 10000). With cache replication configured the answers are shared with the other AM instances
+ * through the {@link CacheReplicator}. Counters and invalidation are exposed over JMX.</p>
+ */
+@Singleton
+public class ClientCache implements ClientCacheMXBean {
+
+    private final Cache<String, Boolean> cache;
+    private final LongAdder negativeHits = new LongAdder();
+
+    public ClientCache(TimeSource clock) {
+        this(clock, CacheReplicator.local());
+    }
+
+    @Inject
+    public ClientCache(TimeSource clock, CacheReplicator replicator) {
+        cache = replicator.newCache("clients", Integer.getInteger("accesstoken.cache.clients.maxSize", 10000), clock,
+                CacheCodec.BOOLEAN);
+        JmxSupport.register(this, "ClientCache");
+    }
+
+    /**
+     * Returns {@code TRUE} if the client is known to exist, {@code FALSE} if it is known not to exist and
+     * {@code null} if IDM has to be asked.
+     */
+    public Boolean lookup(String clientId) {
+        Boolean found = cache.getIfPresent(clientId);
+        if (Boolean.FALSE.equals(found)) {
+            negativeHits.increment();
+        }
+        return found;
+    }
+
+    public void putFound(String clientId, long ttlSeconds) {
+        cache.put(clientId, Boolean.TRUE, TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    public void putNotFound(String clientId, long ttlSeconds) {
+        cache.put(clientId, Boolean.FALSE, TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.hitCount();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.missCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public void invalidate(String clientId) {
+        cache.invalidate(clientId);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,21 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link ClientCache}.
+ */
+public interface ClientCacheMXBean {
+
+    long getHitCount();
+
+    long getNegativeHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    long getSize();
+
+    void invalidate(String clientId);
+
+    void invalidateAll();
+}
@@ -0,0 +1,124 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.Exception.ConsentIdNotFoundException;
+
+/**
+ * Resolves a client and its current consent with one request to an IDM endpoint, instead of a software
+ * statement lookup followed by a consent lookup. Concurrent resolutions of the same client share one request.
+ *
+ * <p>The endpoint answers 404 for an unknown client and 200 for a known one, with the client's consents in
+ * {@code ClientDetails} in the format of the consent endpoint. ClientValidationNode leaves the consent in
+ * transient state under {@link #TRANSIENT_KEY}, with the consent fields named as IDM names them, and
+ * ConsentValidationNode uses it instead of looking the consent up again.</p>
+ */
+@Singleton
+public class ClientConsentLookup {
+
+    public static final String TRANSIENT_KEY = "resolvedConsent";
+
+    private final HttpConnection httpConnection;
+    private final SingleFlight<URI, Resolution> inFlight = new SingleFlight<>("ClientConsentLookup");
+
+    @Inject
+    public ClientConsentLookup(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    /**
+     * Resolves the client and waits, at most for the endpoint's request timeout, for the answer.
+     *
+     * @param url The resolution endpoint, the client id is appended to it.
+     * @param clientId The client id.
+     */
+    public Resolution resolve(String url, String clientId) throws IOException, InterruptedException {
+        HttpRequest request = HttpConnection.getRequest(url + clientId);
+        try {
+            return inFlight.execute(request.uri(),
+                    () -> httpConnection.readAsync(request, (status, body) -> parse(status, clientId, body)),
+                    HttpConnection.requestTimeout(request.uri())).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new HttpTimeoutException("Client resolution timed out: " + clientId);
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static Resolution parse(int status, String clientId, InputStream body) throws IOException {
+        if (status != 200) {
+            return new Resolution(status, null);
+        }
+        Map<String, String> consent = JsonExtractor.firstArrayElement(body, JsonExtractor.DEFAULT_MAX_BYTES,
+                "ClientDetails", "_id", "status", "consentExpiryDateTime");
+        consent.put("clientId", clientId);
+        return new Resolution(status, consent);
+    }
+
+    /**
+     * Returns the consent ClientValidationNode resolved for the client.
+     *
+     * @return the consent, or {@code null} if transient state holds no resolution for this client.
+     * @throws ConsentIdNotFoundException if the client was resolved without a usable consent.
+     */
+    public static ConsentRecord fromTransientState(JsonValue transientState, String clientId) {
+        JsonValue resolved = transientState.get(TRANSIENT_KEY);
+        if (resolved == null || resolved.isNull() || clientId == null
+                || !clientId.equals(resolved.get("clientId").asString())) {
+            return null;
+        }
+        String consentId = resolved.get("_id").asString();
+        String expiry = resolved.get("consentExpiryDateTime").asString();
+        if (consentId == null || consentId.isEmpty() || expiry == null) {
+            throw new ConsentIdNotFoundException("No consent resolved for client: " + clientId);
+        }
+        return new ConsentRecord(consentId, clientId, resolved.get("status").asString(), expiry);
+    }
+
+    /**
+     * The outcome of resolving a client.
+     */
+    public static final class Resolution {
+        private final int status;
+        private final Map<String, String> consent;
+
+        private Resolution(int status, Map<String, String> consent) {
+            this.status = status;
+            this.consent = consent;
+        }
+
+        /**
+         * The HTTP status of the resolution, read the same way as the status of a software statement lookup.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * The client's consent fields to keep in transient state, or {@code null} unless the client was found.
+         */
+        public Map<String, Object> toState() {
+            return consent == null ? null : new LinkedHashMap<>(consent);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Asks the IDM software statement endpoint whether a client exists. Concurrent lookups of the same client share
+ * one request.
+ */
+@Singleton
+public class ClientLookup {
+
+    private final HttpConnection httpConnection;
+    private final SingleFlight<URI, Integer> inFlight = new SingleFlight<>("ClientLookup");
+
+    @Inject
+    public ClientLookup(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    /**
+     * Looks the client up and waits, at most for the endpoint's request timeout, for the answer.
+     *
+     * @param url The software statement endpoint, the client id is appended to it.
+     * @param clientId The client id.
+     * @return the HTTP status of the lookup.
+     */
+    public int status(String url, String clientId) throws IOException, InterruptedException {
+        HttpRequest request = HttpConnection.getRequest(url + clientId);
+        try {
+            return inFlight.execute(request.uri(),
+                    () -> httpConnection.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                            .thenApply(HttpResponse::statusCode),
+                    HttpConnection.requestTimeout(request.uri())).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new HttpTimeoutException("Client lookup timed out: " + clientId);
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
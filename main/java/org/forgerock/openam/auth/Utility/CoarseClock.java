@@ -0,0 +1,64 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A {@link TimeSource} that reads a cached time, refreshed by a background thread every
+ * {@code accesstoken.clock.resolutionMillis} (default 10).
+ *
+ * <p>Expiry checks only need second precision, so the nodes share one volatile read instead of each calling
+ * the system clock. The ticker starts on first use; until then, and after {@link #shutdown()}, the system
+ * clock is read directly.</p>
+ */
+@Singleton
+public class CoarseClock implements TimeSource {
+
+    private final long resolutionMillis = Math.max(1, Long.getLong("accesstoken.clock.resolutionMillis", 10));
+    private volatile long now = System.currentTimeMillis();
+    private volatile ScheduledExecutorService ticker;
+    private volatile boolean stopped;
+
+    @Inject
+    public CoarseClock() {
+    }
+
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        stopped = false;
+        now = System.currentTimeMillis();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "access-token-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), resolutionMillis, resolutionMillis,
+                TimeUnit.MILLISECONDS);
+        ticker = executor;
+    }
+
+    public synchronized void shutdown() {
+        stopped = true;
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        if (ticker == null) {
+            if (stopped) {
+                return System.currentTimeMillis();
+            }
+            start();
+        }
+        return now;
+    }
+}
@@ -0,0 +1,271 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the current consent of each client, indexed by client id and by consent {@code _id}.
+ *
+ * <p>Entries are reloaded in the background ahead of time: once the consent is within the refresh-ahead
+ * window of its {@code consentExpiryDateTime}, or once 80% of the cache TTL has passed, the next read
+ * returns the cached consent and starts an asynchronous reload. Only a consent that has actually expired, or
+ * a client that is not cached, is loaded on the request thread. ConsentStatusUpdateNode writes status changes
+ * through with {@link #markActive(String)}.
+ *
+ * <p>ClientValidationNode may {@link #prefetch} a consent while it checks the client. The in-flight load is
+ * kept for a short while and used by the next {@link #get} for that client instead of a new request; it is
+ * cancelled with {@link #discardPrefetch} if the client turns out to be invalid.</p>
+ *
+ * <p>The size is bounded by {@code accesstoken.cache.consents.maxSize} (default 10000). With cache replication
+ * configured the cached consents, and the status changes written through, are shared with the other AM instances
+ * through the {@link CacheReplicator}; prefetches stay local.</p>
+ */
+@Singleton
+public class ConsentCache implements ConsentCacheMXBean {
+
+    private static final long PREFETCH_TTL_MILLIS = 30000;
+    private static final CacheCodec<Slot> SLOT_CODEC = new CacheCodec<Slot>() {
+        @Override
+        public void write(DataOutput out, Slot slot) throws IOException {
+            ConsentRecord record = slot.record;
+            out.writeUTF(record.getConsentId());
+            out.writeUTF(record.getClientId());
+            out.writeBoolean(record.getStatus() != null);
+            if (record.getStatus() != null) {
+                out.writeUTF(record.getStatus());
+            }
+            out.writeUTF(record.getConsentExpiryDateTime());
+            out.writeLong(slot.refreshAt);
+            out.writeLong(slot.expiresAt);
+        }
+
+        @Override
+        public Slot read(DataInput in) throws IOException {
+            String consentId = in.readUTF();
+            String clientId = in.readUTF();
+            String status = in.readBoolean() ? in.readUTF() : null;
+            ConsentRecord record = new ConsentRecord(consentId, clientId, status, in.readUTF());
+            return new Slot(record, in.readLong(), in.readLong());
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final int maximumSize = Integer.getInteger("accesstoken.cache.consents.maxSize", 10000);
+    private final TimeSource clock;
+    private final Cache<String, Slot> byClient;
+    private final Cache<String, Slot> byConsentId;
+    private final LocalCache<String, CompletableFuture<ConsentRecord>> prefetched;
+    private final Map<String, CompletableFuture<ConsentRecord>> refreshing = new ConcurrentHashMap<>();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder prefetchesUsed = new LongAdder();
+
+    public ConsentCache(TimeSource clock) {
+        this(clock, CacheReplicator.local());
+    }
+
+    @Inject
+    public ConsentCache(TimeSource clock, CacheReplicator replicator) {
+        this.clock = clock;
+        byClient = replicator.newCache("consents.byClient", maximumSize, clock, SLOT_CODEC);
+        byConsentId = replicator.newCache("consents.byConsentId", maximumSize, clock, SLOT_CODEC);
+        prefetched = new LocalCache<>(maximumSize, clock);
+        JmxSupport.register(this, "ConsentCache");
+    }
+
+    /**
+     * Returns the client's consent, from the cache when possible.
+     *
+     * @param clientId The client id.
+     * @param loader Loads the consent of a client from IDM.
+     * @param ttlMillis How long a loaded consent may be served.
+     * @param refreshAheadMillis How long before the consent expires it is reloaded in the background.
+     */
+    public ConsentRecord get(String clientId, Function<String, CompletableFuture<ConsentRecord>> loader,
+            long ttlMillis, long refreshAheadMillis) throws InterruptedException, ExecutionException {
+        Slot slot = byClient.getIfPresent(clientId);
+        long now = clock.currentTimeMillis();
+        if (slot != null && slot.record.getExpiresAtMillis() > now) {
+            if (slot.refreshAt <= now) {
+                refreshAsync(clientId, loader, ttlMillis, refreshAheadMillis);
+            }
+            return slot.record;
+        }
+        CompletableFuture<ConsentRecord> load = prefetched.peek(clientId);
+        if (load != null) {
+            prefetched.invalidate(clientId);
+            prefetchesUsed.increment();
+        } else {
+            load = loader.apply(clientId);
+        }
+        ConsentRecord record;
+        try {
+            record = load.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        put(record, ttlMillis, refreshAheadMillis);
+        return record;
+    }
+
+    /**
+     * Starts loading the client's consent in the background unless it is already cached or being loaded.
+     */
+    public void prefetch(String clientId, Function<String, CompletableFuture<ConsentRecord>> loader) {
+        Slot slot = byClient.peek(clientId);
+        if ((slot != null && slot.record.getExpiresAtMillis() > clock.currentTimeMillis())
+                || prefetched.peek(clientId) != null) {
+            return;
+        }
+        prefetched.put(clientId, loader.apply(clientId), PREFETCH_TTL_MILLIS);
+    }
+
+    /**
+     * Cancels a prefetch started for the client, if any.
+     */
+    public void discardPrefetch(String clientId) {
+        CompletableFuture<ConsentRecord> load = prefetched.peek(clientId);
+        if (load != null) {
+            prefetched.invalidate(clientId);
+            load.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the cached consent with the given {@code _id}, or {@code null}.
+     */
+    public ConsentRecord getByConsentId(String consentId) {
+        Slot slot = byConsentId.getIfPresent(consentId);
+        return slot == null ? null : slot.record;
+    }
+
+    public void put(ConsentRecord record, long ttlMillis, long refreshAheadMillis) {
+        long now = clock.currentTimeMillis();
+        long refreshAt = Math.min(record.getExpiresAtMillis() - refreshAheadMillis, now + ttlMillis * 4 / 5);
+        Slot slot = new Slot(record, refreshAt, now + ttlMillis);
+        byClient.put(record.getClientId(), slot, ttlMillis);
+        byConsentId.put(record.getConsentId(), slot, ttlMillis);
+    }
+
+    /**
+     * Records that the consent has been set to active in IDM. When this instance does not hold the consent, the
+     * other instances may still hold it with its old status, so it is invalidated instead, which they apply too.
+     *
+     * @param clientId The client the consent belongs to, or {@code null} if it is not known.
+     */
+    public void markActive(String consentId, String clientId) {
+        Slot slot = byConsentId.getIfPresent(consentId);
+        if (slot == null) {
+            byConsentId.invalidate(consentId);
+            if (clientId != null) {
+                byClient.invalidate(clientId);
+            }
+            return;
+        }
+        if ("active".equals(slot.record.getStatus())) {
+            return;
+        }
+        long ttlMillis = slot.expiresAt - clock.currentTimeMillis();
+        Slot updated = new Slot(slot.record.withStatus("active"), slot.refreshAt, slot.expiresAt);
+        byClient.put(updated.record.getClientId(), updated, ttlMillis);
+        byConsentId.put(consentId, updated, ttlMillis);
+    }
+
+    /**
+     * Drops the consent with the given {@code _id}, so the next read of it goes to IDM.
+     */
+    public void invalidateConsent(String consentId) {
+        Slot slot = byConsentId.peek(consentId);
+        byConsentId.invalidate(consentId);
+        if (slot != null) {
+            byClient.invalidate(slot.record.getClientId());
+        }
+    }
+
+    private void refreshAsync(String clientId, Function<String, CompletableFuture<ConsentRecord>> loader,
+            long ttlMillis, long refreshAheadMillis) {
+        CompletableFuture<ConsentRecord> refresh = new CompletableFuture<>();
+        if (refreshing.putIfAbsent(clientId, refresh) != null) {
+            return;
+        }
+        refreshes.increment();
+        loader.apply(clientId).whenComplete((record, error) -> {
+            refreshing.remove(clientId, refresh);
+            if (error != null) {
+                logger.warn("Background refresh of the consent of client {} failed", clientId, error);
+                refresh.completeExceptionally(error);
+            } else {
+                put(record, ttlMillis, refreshAheadMillis);
+                refresh.complete(record);
+            }
+        });
+    }
+
+    @Override
+    public long getHitCount() {
+        return byClient.hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return byClient.missCount();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    @Override
+    public long getPrefetchUsedCount() {
+        return prefetchesUsed.sum();
+    }
+
+    @Override
+    public long getSize() {
+        return byClient.size();
+    }
+
+    @Override
+    public void invalidate(String clientId) {
+        Slot slot = byClient.getIfPresent(clientId);
+        byClient.invalidate(clientId);
+        if (slot != null) {
+            byConsentId.invalidate(slot.record.getConsentId());
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        prefetched.invalidateAll();
+        byClient.invalidateAll();
+        byConsentId.invalidateAll();
+    }
+
+    private static final class Slot {
+        private final ConsentRecord record;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        private Slot(ConsentRecord record, long refreshAt, long expiresAt) {
+            this.record = record;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link ConsentCache}.
+ */
+public interface ConsentCacheMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getRefreshCount();
+
+    long getPrefetchUsedCount();
+
+    long getSize();
+
+    void invalidate(String clientId);
+
+    void invalidateAll();
+}
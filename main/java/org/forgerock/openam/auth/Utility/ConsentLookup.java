@@ -0,0 +1,58 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.auth.Exception.ConsentIdNotFoundException;
+
+/**
+ * Fetches the current consent of a client from the IDM consent endpoint. Concurrent fetches of the same client
+ * share one request.
+ */
+@Singleton
+public class ConsentLookup {
+
+    private final HttpConnection httpConnection;
+    private final SingleFlight<URI, ConsentRecord> inFlight = new SingleFlight<>("ConsentLookup");
+
+    @Inject
+    public ConsentLookup(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    /**
+     * Asynchronously reads the first consent IDM returns for the client.
+     *
+     * @param url The consent endpoint, the client id is appended to it.
+     * @param clientId The client id.
+     * @return the consent; completes exceptionally with {@link ConsentIdNotFoundException} if the client has
+     * none, or with a {@link java.util.concurrent.TimeoutException} after the endpoint's request timeout.
+     */
+    public CompletableFuture<ConsentRecord> fetch(String url, String clientId) {
+        HttpRequest request = HttpConnection.getRequest(url + clientId);
+        return inFlight.execute(request.uri(),
+                () -> httpConnection.readAsync(request, (status, body) -> parse(clientId, body)),
+                HttpConnection.requestTimeout(request.uri()));
+    }
+
+    static ConsentRecord parse(String clientId, InputStream body) throws IOException {
+        Map<String, String> consent = JsonExtractor.firstArrayElement(body, JsonExtractor.DEFAULT_MAX_BYTES,
+                "ClientDetails", "_id", "status", "consentExpiryDateTime");
+        String consentId = consent.get("_id");
+        if (consentId == null || consentId.isEmpty()) {
+            throw new ConsentIdNotFoundException("No consent found for client: " + clientId);
+        }
+        String expiry = consent.get("consentExpiryDateTime");
+        if (expiry == null) {
+            throw new ConsentIdNotFoundException("Consent " + consentId + " has no expiry");
+        }
+        return new ConsentRecord(consentId, clientId, consent.get("status"), expiry);
+    }
+}
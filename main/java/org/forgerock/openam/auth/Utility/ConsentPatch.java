@@ -0,0 +1,21 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Builds the IDM JSON patch documents applied to consents.
+ */
+public final class ConsentPatch {
+
+    private ConsentPatch() {
+    }
+
+    /**
+     * The patch that sets a consent's status to active.
+     *
+     * @param statusUpdateDateTime The value stored in {@code statusUpdateDateTime}, an ISO local date-time.
+     */
+    public static String activate(String statusUpdateDateTime) {
+        return "[{\"operation\":\"replace\",\"field\":\"/status\",\"value\":\"active\"},"
+                + "{\"operation\":\"replace\",\"field\":\"/statusUpdateDateTime\",\"value\":\""
+                + statusUpdateDateTime + "\"}]";
+    }
+}
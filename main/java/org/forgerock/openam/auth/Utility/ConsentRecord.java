@@ -0,0 +1,58 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.time.ZonedDateTime;
+
+/**
+ * The parts of an IDM consent the nodes need. Immutable; the expiry is parsed once when the record is built.
+ */
+public final class ConsentRecord {
+
+    private final String consentId;
+    private final String clientId;
+    private final String status;
+    private final String consentExpiryDateTime;
+    private final long expiresAtMillis;
+
+    public ConsentRecord(String consentId, String clientId, String status, String consentExpiryDateTime) {
+        this.consentId = consentId;
+        this.clientId = clientId;
+        this.status = status;
+        this.consentExpiryDateTime = consentExpiryDateTime;
+        this.expiresAtMillis = ZonedDateTime.parse(consentExpiryDateTime).toInstant().toEpochMilli();
+    }
+
+    private ConsentRecord(ConsentRecord record, String status) {
+        this.consentId = record.consentId;
+        this.clientId = record.clientId;
+        this.status = status;
+        this.consentExpiryDateTime = record.consentExpiryDateTime;
+        this.expiresAtMillis = record.expiresAtMillis;
+    }
+
+    public String getConsentId() {
+        return consentId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getConsentExpiryDateTime() {
+        return consentExpiryDateTime;
+    }
+
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * Returns a copy of this record with the given status.
+     */
+    public ConsentRecord withStatus(String status) {
+        return new ConsentRecord(this, status);
+    }
+}
@@ -0,0 +1,325 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of IDM's managed Consent objects, so ConsentValidationNode can answer without a request
+ * per login.
+ *
+ * <p>The replica is loaded with a paged query of {@code accesstoken.consent.replica.url} (default
+ * {@code http://localhost:8080/openidm/managed/Consent}), {@code pageSize} (1000) objects at a time. Every
+ * {@code pollMillis} (5000) it queries for the consents whose {@code statusUpdateDateTime} is at or after the
+ * latest one it has seen, or the time of the load if none had a readable one, and applies them. Deleted consents, and consents without a
+ * {@code statusUpdateDateTime}, are only picked up by the full reload every {@code fullSyncMinutes} (60).
+ * ConsentStatusUpdateNode applies its own updates immediately through {@link #markActive}.</p>
+ *
+ * <p>Only clients with a single consent are answered from the replica: which of several consents applies is up
+ * to the consent endpoint, so for those clients the caller asks it. Deleted consents only clear that state with
+ * the next full reload. {@link #get} only answers while the last successful sync started within the caller's lag
+ * bound; otherwise, and for clients the replica does not know, it returns {@code null} and the caller asks IDM.
+ * {@code statusUpdateDateTime} values are compared as instants; values without an offset, as
+ * ConsentStatusUpdateNode writes them, are taken to be in the JVM's time zone. Polling starts on first use, or from the plugin when
+ * {@code accesstoken.consent.replica.enabled} is {@code true}.</p>
+ */
+@Singleton
+public class ConsentReplica implements ConsentReplicaMXBean {
+
+    private static final String PREFIX = "accesstoken.consent.replica.";
+    private static final String FIELDS = "_id,clientId,status,consentExpiryDateTime,statusUpdateDateTime";
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpConnection httpConnection;
+    private final TimeSource clock;
+    private final String url = System.getProperty(PREFIX + "url", "http://localhost:8080/openidm/managed/Consent");
+    private final int pageSize = Integer.getInteger(PREFIX + "pageSize", 1000);
+    private final long pollMillis = Math.max(100, Long.getLong(PREFIX + "pollMillis", 5000));
+    private final long fullSyncMillis = TimeUnit.MINUTES.toMillis(Long.getLong(PREFIX + "fullSyncMinutes", 60));
+    private final LongAdder fullSyncs = new LongAdder();
+    private final LongAdder incrementalSyncs = new LongAdder();
+    private final LongAdder failedSyncs = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private volatile Snapshot snapshot;
+    private volatile long syncedAt = -1;
+    private volatile boolean fullSyncRequested;
+    private volatile ScheduledExecutorService ticker;
+
+    @Inject
+    public ConsentReplica(HttpConnection httpConnection, TimeSource clock) {
+        this.httpConnection = httpConnection;
+        this.clock = clock;
+        JmxSupport.register(this, "ConsentReplica");
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(PREFIX + "enabled");
+    }
+
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "access-token-consent-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::sync, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Returns the client's consent if the replica is fresh enough.
+     *
+     * @param clientId The client id.
+     * @param maxLagMillis How far behind IDM the replica may be.
+     * @return the consent, or {@code null} if the replica is too stale or does not know the client.
+     */
+    public ConsentRecord get(String clientId, long maxLagMillis) {
+        if (ticker == null) {
+            start();
+        }
+        Snapshot current = snapshot;
+        long synced = syncedAt;
+        ConsentRecord record = current == null || synced < 0 || clock.currentTimeMillis() - synced > maxLagMillis
+                || current.ambiguous.contains(clientId) ? null : current.byClient.get(clientId);
+        if (record == null) {
+            fallbacks.increment();
+        } else {
+            hits.increment();
+        }
+        return record;
+    }
+
+    /**
+     * Records that the consent has been set to active in IDM.
+     */
+    public void markActive(String consentId) {
+        Snapshot current = snapshot;
+        ConsentRecord record = current == null ? null : current.byId.get(consentId);
+        if (record == null || "active".equals(record.getStatus())) {
+            return;
+        }
+        ConsentRecord updated = record.withStatus("active");
+        current.byId.put(consentId, updated);
+        current.byClient.computeIfPresent(updated.getClientId(),
+                (clientId, existing) -> existing.getConsentId().equals(consentId) ? updated : existing);
+    }
+
+    /**
+     * Drops the consent with the given {@code _id} until IDM reports it again, so its client is looked up in IDM.
+     */
+    public void invalidate(String consentId) {
+        Snapshot current = snapshot;
+        ConsentRecord record = current == null ? null : current.byId.remove(consentId);
+        if (record != null) {
+            current.byClient.remove(record.getClientId(), record);
+        }
+    }
+
+    void sync() {
+        long started = clock.currentTimeMillis();
+        try {
+            Snapshot current = snapshot;
+            if (current == null || fullSyncRequested || started - current.loadedAt >= fullSyncMillis) {
+                fullSyncRequested = false;
+                Snapshot fresh = new Snapshot(started);
+                query("true", fresh);
+                snapshot = fresh;
+                fullSyncs.increment();
+                logger.debug("Consent replica loaded {} consents", fresh.byId.size());
+            } else {
+                query("statusUpdateDateTime ge \"" + current.since() + "\"", current);
+                incrementalSyncs.increment();
+            }
+            syncedAt = started;
+        } catch (IOException | RuntimeException e) {
+            failedSyncs.increment();
+            logger.warn("Consent replica sync failed: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void query(String filter, Snapshot target) throws IOException, InterruptedException {
+        String base = url + "?_queryFilter=" + encode(filter) + "&_pageSize=" + pageSize + "&_fields=" + FIELDS;
+        String cookie = null;
+        do {
+            String page = cookie == null ? base : base + "&_pagedResultsCookie=" + encode(cookie);
+            cookie = httpConnection.read(HttpConnection.getRequest(page), (status, body) -> readPage(status, body,
+                    target));
+        } while (cookie != null && !cookie.isEmpty());
+    }
+
+    /**
+     * Applies one page of query results.
+     *
+     * @return the cookie of the next page, or {@code null} after the last one.
+     */
+    private String readPage(int status, InputStream body, Snapshot target) throws IOException {
+        if (status != 200) {
+            throw new IOException("Consent query returned " + status);
+        }
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(JsonExtractor.DEFAULT_MAX_BYTES, pageSize * 1024L));
+        Map<String, String> page = JsonExtractor.forEachArrayElement(body, maxBytes, "result",
+                consent -> apply(consent, target), FIELDS.split(","));
+        return page.get("pagedResultsCookie");
+    }
+
+    private void apply(Map<String, String> consent, Snapshot target) {
+        String id = consent.get("_id");
+        String clientId = consent.get("clientId");
+        String expiry = consent.get("consentExpiryDateTime");
+        if (id == null || clientId == null || expiry == null) {
+            return;
+        }
+        ConsentRecord record;
+        try {
+            record = new ConsentRecord(id, clientId, consent.get("status"), expiry);
+        } catch (DateTimeParseException e) {
+            logger.debug("Consent {} has an invalid expiry {}", id, expiry);
+            return;
+        }
+        target.byId.put(id, record);
+        ConsentRecord existing = target.byClient.putIfAbsent(clientId, record);
+        if (existing != null) {
+            if (existing.getConsentId().equals(id)) {
+                target.byClient.put(clientId, record);
+            } else {
+                target.ambiguous.add(clientId);
+            }
+        }
+        String updated = consent.get("statusUpdateDateTime");
+        long updatedMillis = updated == null ? Long.MIN_VALUE : epochMillis(updated);
+        if (updatedMillis > target.lastSeenMillis) {
+            target.lastSeenMillis = updatedMillis;
+            target.lastSeen = updated;
+        }
+    }
+
+    /**
+     * Reads a {@code statusUpdateDateTime}, with any precision, and with or without an offset or zone.
+     *
+     * @return the instant in epoch milliseconds, or {@code Long.MIN_VALUE} if the value cannot be read.
+     */
+    static long epochMillis(String value) {
+        try {
+            TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(value, ZonedDateTime::from,
+                    LocalDateTime::from);
+            ZonedDateTime dateTime = parsed instanceof ZonedDateTime ? (ZonedDateTime) parsed
+                    : ((LocalDateTime) parsed).atZone(ZoneId.systemDefault());
+            return dateTime.toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getSize() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.byId.size();
+    }
+
+    @Override
+    public long getLagMillis() {
+        long synced = syncedAt;
+        return synced < 0 ? -1 : clock.currentTimeMillis() - synced;
+    }
+
+    @Override
+    public String getLastSeenUpdate() {
+        Snapshot current = snapshot;
+        return current == null ? null : current.lastSeen;
+    }
+
+    @Override
+    public long getFullSyncCount() {
+        return fullSyncs.sum();
+    }
+
+    @Override
+    public long getIncrementalSyncCount() {
+        return incrementalSyncs.sum();
+    }
+
+    @Override
+    public long getFailedSyncCount() {
+        return failedSyncs.sum();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return fallbacks.sum();
+    }
+
+    @Override
+    public void resync() {
+        fullSyncRequested = true;
+    }
+
+    /**
+     * One full load of the replica and the incremental updates applied to it since.
+     */
+    private static final class Snapshot {
+        private final long loadedAt;
+        private final Map<String, ConsentRecord> byId = new ConcurrentHashMap<>();
+        private final Map<String, ConsentRecord> byClient = new ConcurrentHashMap<>();
+        /** Clients with more than one consent. */
+        private final Set<String> ambiguous = ConcurrentHashMap.newKeySet();
+        private volatile String lastSeen;
+        private volatile long lastSeenMillis = Long.MIN_VALUE;
+
+        private Snapshot(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * The {@code statusUpdateDateTime} to poll from: the latest one seen or, until one is, the time of the
+         * load, written the way ConsentStatusUpdateNode writes it.
+         */
+        private String since() {
+            String seen = lastSeen;
+            return seen != null ? seen
+                    : LocalDateTime.ofInstant(Instant.ofEpochMilli(loadedAt), ZoneId.systemDefault()).toString();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link ConsentReplica}.
+ */
+public interface ConsentReplicaMXBean {
+
+    long getSize();
+
+    /**
+     * How far behind IDM the replica may be, or -1 if it has not loaded yet.
+     */
+    long getLagMillis();
+
+    String getLastSeenUpdate();
+
+    long getFullSyncCount();
+
+    long getIncrementalSyncCount();
+
+    long getFailedSyncCount();
+
+    long getHitCount();
+
+    long getFallbackCount();
+
+    /**
+     * Drops the replica and reloads it on the next poll.
+     */
+    void resync();
+}
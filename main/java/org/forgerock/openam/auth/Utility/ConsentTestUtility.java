@@ -4,52 +4,62 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 
+/**
+ * Creates and deletes test consents in IDM's managed Consent object. Safe to call from several threads; see
+ * {@code ConsentSeeder} for creating them in bulk.
+ */
 public class ConsentTestUtility {
 
-    private static final String url = "http://localhost:8080/openidm/managed/Consent/";
-    private static HttpRequest request;
-    private static HttpResponse<String> response;
-    private static HttpClient client;
+    public static final String URL = "http://localhost:8080/openidm/managed/Consent/";
+    static final Map<String, String> JSON_HEADERS = Collections.singletonMap("Content-Type", "application/json");
+
+    private static final HttpConnection connection = new HttpConnection();
 
     public static JSONObject createTestConsent(String personId,String personLastName, String personEmail, String consentReAuthorisationDateTime,String consentStartDateTime, String scope, String orgId,String clientIdanzSSAId,String clientId,String status, String consentId, LocalDateTime now, LocalDateTime expiry)
             throws IOException, InterruptedException, JSONException {
         //creating dummy consent for test
+        JSONObject consent = consent(personId, personLastName, personEmail, consentReAuthorisationDateTime,
+                consentStartDateTime, scope, orgId, clientIdanzSSAId, clientId, status, consentId, now.toString(),
+                expiry.toString());
 
-        Map<String, String> headers = new HashMap<>();
-        headers.put("Content-Type", "application/json");
-
-        String sb = "{" +
-                "\"personId\": \"" + personId + "\"," +
-                "\"personLastName\": \"" + personLastName + "\"," +
-                "\"personEmail\": \"" + personEmail + "\"," +
-                "\"consentReAuthorisationDateTime\": \"" + consentReAuthorisationDateTime + "\"," +
-                "\"consentStartDateTime\": \"" + consentStartDateTime + "\"," +
-                "\"scope\": \"" + scope + "\"," +
-                "\"orgId\": \"" + orgId + "\"," +
-                "\"clientIdanzSSAId\": \"" + clientIdanzSSAId + "\"," +
-                "\"clientId\": \"" + clientId + "\"," +
-                "\"status\": \"" + status + "\"," +
-                "\"statusUpdateDateTime\": \"" + now.toString() + "\"," +
-                "\"consentId\": \"" + consentId + "\"," +
-                "\"consentExpiryDateTime\": \"" + expiry.toString() + "\"}";
-
-        request = HttpConnection.sendRequest(url, "POST", headers, sb);
-        client = HttpClient.newBuilder().build();
-        response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpRequest request = HttpConnection.sendRequest(URL, "POST", JSON_HEADERS, consent.toString());
+        HttpResponse<String> response = connection.send(request, HttpResponse.BodyHandlers.ofString());
 
         return new JSONObject(response.body());
     }
 
     public static void deleteConsent(String _id) throws IOException, InterruptedException {
-        request = HttpConnection.sendRequest(url + _id, "DELETE", null, null);
-        response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpRequest request = HttpConnection.sendRequest(URL + _id, "DELETE", null, null);
+        connection.send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    /**
+     * Builds the managed Consent object IDM expects. The values are escaped by {@link JSONObject}.
+     */
+    public static JSONObject consent(String personId, String personLastName, String personEmail,
+            String consentReAuthorisationDateTime, String consentStartDateTime, String scope, String orgId,
+            String clientIdanzSSAId, String clientId, String status, String consentId, String statusUpdateDateTime,
+            String consentExpiryDateTime) throws JSONException {
+        return new JSONObject()
+                .put("personId", personId)
+                .put("personLastName", personLastName)
+                .put("personEmail", personEmail)
+                .put("consentReAuthorisationDateTime", consentReAuthorisationDateTime)
+                .put("consentStartDateTime", consentStartDateTime)
+                .put("scope", scope)
+                .put("orgId", orgId)
+                .put("clientIdanzSSAId", clientIdanzSSAId)
+                .put("clientId", clientId)
+                .put("status", status)
+                .put("statusUpdateDateTime", statusUpdateDateTime)
+                .put("consentId", consentId)
+                .put("consentExpiryDateTime", consentExpiryDateTime);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of the consent status updates that have not reached IDM yet.
+ *
+ * <p>Each update is written as a {@code P} line with a sequence number before the login continues, and an
+ * {@code A} line is appended once IDM has accepted it. On startup the {@code P} lines without a matching
+ * {@code A} are replayed. Appends only reach the operating system, which keeps them through a crash of AM;
+ * {@link #sync} makes everything appended so far durable with a single fsync, so the caller decides how much
+ * a power loss may cost. The file is truncated whenever nothing is pending, and rewritten with just the pending
+ * updates once it has grown past the compaction threshold.</p>
+ */
+final class ConsentUpdateJournal {
+
+    /**
+     * A journalled update.
+     */
+    static final class Entry {
+        final long sequence;
+        final String url;
+        final String consentId;
+        final String statusUpdateDateTime;
+
+        Entry(long sequence, String url, String consentId, String statusUpdateDateTime) {
+            this.sequence = sequence;
+            this.url = url;
+            this.consentId = consentId;
+            this.statusUpdateDateTime = statusUpdateDateTime;
+        }
+    }
+
+    private final Path path;
+    private final long compactBytes;
+    private final Map<Long, Entry> outstanding = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long nextSequence = 1;
+    private long size;
+    private long compactAt;
+    private boolean dirty;
+
+    /**
+     * @param compactBytes The size past which the journal is rewritten with only the pending updates.
+     */
+    ConsentUpdateJournal(Path path, long compactBytes) {
+        this.path = path;
+        this.compactBytes = compactBytes;
+        this.compactAt = compactBytes;
+    }
+
+    /**
+     * Opens the journal and returns the updates that were never acknowledged.
+     */
+    synchronized List<Entry> open() throws IOException {
+        Map<Long, Entry> pending = new LinkedHashMap<>();
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    try {
+                        long sequence = Long.parseLong(fields[1]);
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                        if ("P".equals(fields[0]) && fields.length == 5) {
+                            pending.put(sequence, new Entry(sequence, fields[2], fields[3], fields[4]));
+                        } else if ("A".equals(fields[0])) {
+                            pending.remove(sequence);
+                        }
+                    } catch (RuntimeException e) {
+                        // a torn last line from a crash, nothing after it was acknowledged
+                    }
+                }
+            }
+        }
+        outstanding.putAll(pending);
+        rewrite();
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Records an update and returns it with its sequence number. The update survives a crash of AM at once,
+     * and a power loss after the next {@link #sync}.
+     */
+    synchronized Entry append(String url, String consentId, String statusUpdateDateTime) throws IOException {
+        Entry entry = new Entry(nextSequence++, url, consentId, statusUpdateDateTime);
+        StringBuilder line = new StringBuilder();
+        appendPending(line, entry);
+        write(line);
+        outstanding.put(entry.sequence, entry);
+        return entry;
+    }
+
+    /**
+     * Forces everything appended so far to disk. Appends carry on while the fsync runs.
+     */
+    void sync() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (!dirty || channel == null) {
+                return;
+            }
+            dirty = false;
+            current = channel;
+        }
+        current.force(false);
+    }
+
+    /**
+     * Records that the updates with these sequence numbers have been applied, truncating the journal if
+     * nothing else is pending and compacting it once it has grown too large.
+     */
+    synchronized void acknowledge(Collection<Long> sequences) throws IOException {
+        for (Long sequence : sequences) {
+            outstanding.remove(sequence);
+        }
+        if (outstanding.isEmpty()) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            size = 0;
+            dirty = false;
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Long sequence : sequences) {
+            lines.append("A\t").append(sequence).append('\n');
+        }
+        write(lines);
+        if (size >= compactAt) {
+            rewrite();
+            // while many updates are pending the rewritten file is large too, do not rewrite it on every ack
+            compactAt = Math.max(compactBytes, 2 * size);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void appendPending(StringBuilder line, Entry entry) {
+        line.append("P\t").append(entry.sequence).append('\t').append(entry.url).append('\t')
+                .append(entry.consentId).append('\t').append(entry.statusUpdateDateTime).append('\n');
+    }
+
+    /**
+     * Replaces the journal with a file holding only the pending updates, written and forced beside it and then
+     * moved over it, so a crash leaves either the old or the new journal.
+     */
+    private void rewrite() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : outstanding.values()) {
+            appendPending(lines, entry);
+        }
+        Path next = path.resolveSibling(path.getFileName() + ".next");
+        try (FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        dirty = false;
+    }
+
+    private void write(CharSequence lines) throws IOException {
+        if (channel == null) {
+            throw new IOException("Consent update journal is not open");
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        dirty = true;
+    }
+}
@@ -0,0 +1,288 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies consent status updates to IDM in the background, off the login path.
+ *
+ * <p>{@link #submit} appends the update to a {@link ConsentUpdateJournal} and returns; updates to the same
+ * consent are coalesced so only the latest one is sent. A single flusher thread sends what is pending every
+ * {@code lingerMs}, or as soon as {@code batchSize} consents are waiting, retrying failures with exponential
+ * backoff up to {@code maxRetries} times. An update IDM rejects, or that is given up on, is dropped and the
+ * consent invalidated in the {@link ConsentCache} and {@link ConsentReplica}, which had already been told it was
+ * active, so the next login reads it from IDM and submits the update again. Updates still in the journal when AM
+ * stops are replayed on the next start. Each flush first forces the journal to disk with one fsync for all the
+ * updates appended since the last one, so logins never wait for the disk; a power loss can lose at most the last
+ * {@code lingerMs} of updates, and a crash of AM none.</p>
+ *
+ * <p>Settings are system properties under {@code accesstoken.consent.writeBehind.}: {@code batchSize}
+ * (default 50), {@code lingerMs} (200), {@code maxRetries} (10), {@code journal} and {@code journalCompactBytes}
+ * (1 MiB, the size past which the journal is rewritten without the acknowledged updates). {@code journal} must
+ * name a file on durable storage, not a temporary directory that may be memory-backed or cleared on reboot;
+ * without it write-behind is off and every update is applied synchronously.</p>
+ */
+@Singleton
+public class ConsentWriteBehind {
+
+    private static final String PREFIX = "accesstoken.consent.writeBehind.";
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpConnection httpConnection;
+    private final ConsentCache consentCache;
+    private final ConsentReplica consentReplica;
+    private final int batchSize = Integer.getInteger(PREFIX + "batchSize", 50);
+    private final long lingerMillis = Long.getLong(PREFIX + "lingerMs", 200);
+    private final int maxRetries = Integer.getInteger(PREFIX + "maxRetries", 10);
+    private final long journalCompactBytes = Long.getLong(PREFIX + "journalCompactBytes", 1 << 20);
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private volatile ConsentUpdateJournal journal;
+    private volatile ScheduledExecutorService flusher;
+
+    @Inject
+    public ConsentWriteBehind(HttpConnection httpConnection, ConsentCache consentCache,
+            ConsentReplica consentReplica) {
+        this.httpConnection = httpConnection;
+        this.consentCache = consentCache;
+        this.consentReplica = consentReplica;
+    }
+
+    /**
+     * Opens the journal, queues the updates left over from the previous run and starts the flusher.
+     */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        String path = System.getProperty(PREFIX + "journal", "");
+        if (path.isEmpty()) {
+            logger.error("Consent write-behind is off until {}journal names a file on durable storage, updates "
+                    + "will be written synchronously", PREFIX);
+        } else {
+            open(Paths.get(path));
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "access-token-consent-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void open(Path path) {
+        ConsentUpdateJournal opened = new ConsentUpdateJournal(path, journalCompactBytes);
+        try {
+            List<ConsentUpdateJournal.Entry> replayed = opened.open();
+            for (ConsentUpdateJournal.Entry entry : replayed) {
+                enqueue(entry);
+            }
+            journal = opened;
+            if (!replayed.isEmpty()) {
+                logger.info("Replaying {} journalled consent status updates", replayed.size());
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open the consent update journal {}, updates will be written synchronously",
+                    path, e);
+        }
+    }
+
+    /**
+     * Makes a last attempt to send what is pending and closes the journal. Anything not sent stays in the
+     * journal for the next start.
+     */
+    public synchronized void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        if (journal != null) {
+            flush();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the consent update journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Durably queues the update of a consent to active.
+     *
+     * @return {@code false} if the update could not be journalled, in which case the caller must apply it
+     * itself.
+     */
+    public boolean submit(String url, String consentId, String statusUpdateDateTime) {
+        if (flusher == null) {
+            start();
+        }
+        ConsentUpdateJournal current = journal;
+        if (current == null) {
+            return false;
+        }
+        try {
+            enqueue(current.append(url, consentId, statusUpdateDateTime));
+        } catch (IOException e) {
+            logger.error("Failed to journal the status update of consent {}", consentId, e);
+            return false;
+        }
+        ScheduledExecutorService scheduler = flusher;
+        if (pending.size() >= batchSize && scheduler != null) {
+            scheduler.execute(this::flush);
+        }
+        return true;
+    }
+
+    private void enqueue(ConsentUpdateJournal.Entry entry) {
+        Pending update = new Pending(entry.url, entry.consentId, entry.statusUpdateDateTime,
+                Collections.singletonList(entry.sequence), 0, 0);
+        pending.merge(update.key(), update, Pending::absorb);
+    }
+
+    private void flush() {
+        ConsentUpdateJournal current = journal;
+        if (current != null) {
+            try {
+                current.sync();
+            } catch (IOException e) {
+                logger.error("Failed to sync the consent update journal", e);
+            }
+        }
+        try {
+            List<Pending> batch;
+            while (!(batch = nextBatch()).isEmpty()) {
+                send(batch);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Consent status update flush failed", e);
+        }
+    }
+
+    private List<Pending> nextBatch() {
+        long now = System.currentTimeMillis();
+        List<Pending> batch = new ArrayList<>();
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+            if (entry.getValue().nextAttemptAt <= now && pending.remove(entry.getKey(), entry.getValue())) {
+                batch.add(entry.getValue());
+            }
+        }
+        return batch;
+    }
+
+    private void send(List<Pending> batch) {
+        List<CompletableFuture<Result>> results = new ArrayList<>(batch.size());
+        for (Pending update : batch) {
+            HttpRequest request = HttpConnection.sendRequest(update.url + update.consentId, "PATCH",
+                    Collections.singletonMap("Content-Type", "application/json"),
+                    ConsentPatch.activate(update.statusUpdateDateTime));
+            results.add(httpConnection.sendAsync(request, BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        if (error != null || response.statusCode() >= 500) {
+                            return Result.RETRY;
+                        }
+                        if (response.statusCode() >= 300) {
+                            logger.error("IDM rejected the status update of consent {} with {}",
+                                    update.consentId, response.statusCode());
+                            return Result.REJECTED;
+                        }
+                        return Result.APPLIED;
+                    }));
+        }
+        List<Long> done = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); i++) {
+            Pending update = batch.get(i);
+            Result result = results.get(i).join();
+            if (result == Result.APPLIED) {
+                done.addAll(update.sequences);
+            } else if (result == Result.REJECTED || update.attempts + 1 >= maxRetries) {
+                if (result == Result.RETRY) {
+                    logger.error("Giving up on the status update of consent {} after {} attempts",
+                            update.consentId, update.attempts + 1);
+                }
+                consentCache.invalidateConsent(update.consentId);
+                consentReplica.invalidate(update.consentId);
+                done.addAll(update.sequences);
+            } else {
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, lingerMillis << Math.min(update.attempts + 1, 20));
+                Pending retry = new Pending(update.url, update.consentId, update.statusUpdateDateTime,
+                        update.sequences, update.attempts + 1, now + backoff);
+                pending.merge(retry.key(), retry, Pending::absorb);
+            }
+        }
+        if (!done.isEmpty() && journal != null) {
+            try {
+                journal.acknowledge(done);
+            } catch (IOException e) {
+                logger.warn("Failed to acknowledge consent status updates in the journal", e);
+            }
+        }
+    }
+
+    private enum Result { APPLIED, REJECTED, RETRY }
+
+    private static final class Pending {
+        private final String url;
+        private final String consentId;
+        private final String statusUpdateDateTime;
+        private final List<Long> sequences;
+        private final int attempts;
+        private final long nextAttemptAt;
+
+        private Pending(String url, String consentId, String statusUpdateDateTime, List<Long> sequences,
+                int attempts, long nextAttemptAt) {
+            this.url = url;
+            this.consentId = consentId;
+            this.statusUpdateDateTime = statusUpdateDateTime;
+            this.sequences = sequences;
+            this.attempts = attempts;
+            this.nextAttemptAt = nextAttemptAt;
+        }
+
+        private String key() {
+            return url + consentId;
+        }
+
+        /**
+         * Coalesces two updates of the same consent: the later timestamp is sent and both are acknowledged
+         * together.
+         */
+        private static Pending absorb(Pending existing, Pending other) {
+            Pending latest = existing.statusUpdateDateTime.compareTo(other.statusUpdateDateTime) >= 0
+                    ? existing : other;
+            List<Long> sequences = new ArrayList<>(existing.sequences);
+            sequences.addAll(other.sequences);
+            return new Pending(latest.url, latest.consentId, latest.statusUpdateDateTime, sequences,
+                    Math.min(existing.attempts, other.attempts),
+                    Math.min(existing.nextAttemptAt, other.nextAttemptAt));
+        }
+    }
+}
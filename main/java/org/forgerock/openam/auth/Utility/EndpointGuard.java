@@ -0,0 +1,250 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.auth.Exception.EndpointUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker and bulkhead of one endpoint, applied by {@link HttpConnection} around every call.
+ *
+ * <p>Outcomes are counted in a rolling window of one second buckets. Once the window holds at least
+ * {@code minimumCalls} calls and {@code failureRatePercent} of them failed, the breaker opens and calls fail
+ * immediately with {@link EndpointUnavailableException} for {@code openSeconds}. It then lets
+ * {@code halfOpenCalls} trial calls through: the breaker closes if they all succeed and opens again on the first
+ * failure. Independently, at most {@code maxConcurrent} calls may be in flight. Transport errors, timeouts, 429
+ * and 5xx responses count as failures.</p>
+ *
+ * <p>Settings are read like the timeouts of {@link HttpConnection}: {@code accesstoken.http.maxConcurrent}
+ * (default 64), {@code accesstoken.http.breaker.failureRatePercent} (50), {@code .minimumCalls} (20),
+ * {@code .windowSeconds} (10, at least 1), {@code .openSeconds} (5) and {@code .halfOpenCalls} (3), each of which can be
+ * overridden under {@code accesstoken.http.endpoint.<host:port>.}.</p>
+ */
+public final class EndpointGuard implements EndpointGuardMXBean {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final long BUCKET_MILLIS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final String endpoint;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final int failureRatePercent;
+    private final long minimumCalls;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    private final AtomicReferenceArray<Bucket> window;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger trialsIssued = new AtomicInteger();
+    private final AtomicInteger trialsSucceeded = new AtomicInteger();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder bulkheadRejected = new LongAdder();
+    private volatile long openedAt;
+
+    EndpointGuard(String endpoint) {
+        this.endpoint = endpoint;
+        this.maxConcurrent = (int) HttpConnection.setting(endpoint, "maxConcurrent", 64);
+        this.permits = new Semaphore(maxConcurrent);
+        this.failureRatePercent = (int) HttpConnection.setting(endpoint, "breaker.failureRatePercent", 50);
+        this.minimumCalls = HttpConnection.setting(endpoint, "breaker.minimumCalls", 20);
+        this.openMillis = HttpConnection.setting(endpoint, "breaker.openSeconds", 5) * 1000;
+        this.halfOpenCalls = (int) HttpConnection.setting(endpoint, "breaker.halfOpenCalls", 3);
+        this.window = new AtomicReferenceArray<>(
+                (int) Math.max(1, HttpConnection.setting(endpoint, "breaker.windowSeconds", 10)));
+        JmxSupport.register(this, "EndpointGuard", endpoint);
+    }
+
+    /**
+     * Reserves a slot for one call.
+     *
+     * @throws EndpointUnavailableException if the breaker is open or the endpoint has too many calls in flight.
+     */
+    void acquire() {
+        State current = state.get();
+        if (current == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis || !transition(State.OPEN, State.HALF_OPEN)) {
+                shortCircuited.increment();
+                throw new EndpointUnavailableException("Circuit breaker for " + endpoint + " is open");
+            }
+            current = State.HALF_OPEN;
+        }
+        if (current == State.HALF_OPEN && trialsIssued.incrementAndGet() > halfOpenCalls) {
+            shortCircuited.increment();
+            throw new EndpointUnavailableException("Circuit breaker for " + endpoint + " is half open");
+        }
+        if (!permits.tryAcquire()) {
+            if (current == State.HALF_OPEN) {
+                trialsIssued.decrementAndGet();
+            }
+            bulkheadRejected.increment();
+            throw new EndpointUnavailableException(endpoint + " has " + maxConcurrent + " calls in flight");
+        }
+    }
+
+    /**
+     * Releases the slot of a completed call and records its outcome.
+     */
+    void complete(boolean success) {
+        permits.release();
+        bucket(System.currentTimeMillis()).record(success);
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            if (!success) {
+                open(State.HALF_OPEN);
+            } else if (trialsSucceeded.incrementAndGet() >= halfOpenCalls && transition(State.HALF_OPEN, State.CLOSED)) {
+                clearWindow();
+            }
+        } else if (current == State.CLOSED && !success) {
+            long[] counts = counts();
+            if (counts[0] >= minimumCalls && counts[1] * 100 >= counts[0] * failureRatePercent) {
+                open(State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Releases the slot of a call that did not reach the endpoint, without recording an outcome.
+     */
+    void cancel() {
+        permits.release();
+        if (state.get() == State.HALF_OPEN) {
+            trialsIssued.decrementAndGet();
+        }
+    }
+
+    static boolean isFailure(int statusCode) {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+    State state() {
+        return state.get();
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public String getState() {
+        return state.get().name();
+    }
+
+    @Override
+    public int getFailureRatePercent() {
+        long[] counts = counts();
+        return counts[0] == 0 ? 0 : (int) (counts[1] * 100 / counts[0]);
+    }
+
+    @Override
+    public long getCallsInWindow() {
+        return counts()[0];
+    }
+
+    @Override
+    public int getInFlight() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    @Override
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public long getShortCircuitedCount() {
+        return shortCircuited.sum();
+    }
+
+    @Override
+    public long getBulkheadRejectedCount() {
+        return bulkheadRejected.sum();
+    }
+
+    @Override
+    public void reset() {
+        state.set(State.CLOSED);
+        clearWindow();
+        logger.info("Circuit breaker for {} reset", endpoint);
+    }
+
+    private void open(State from) {
+        if (transition(from, State.OPEN)) {
+            logger.warn("Circuit breaker for {} opened, failing calls for {} ms", endpoint, openMillis);
+        }
+    }
+
+    private boolean transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        if (to == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        } else if (to == State.HALF_OPEN) {
+            trialsIssued.set(0);
+            trialsSucceeded.set(0);
+        } else if (to == State.CLOSED) {
+            logger.info("Circuit breaker for {} closed", endpoint);
+        }
+        return true;
+    }
+
+    private Bucket bucket(long nowMillis) {
+        long epoch = nowMillis / BUCKET_MILLIS;
+        int index = (int) (epoch % window.length());
+        while (true) {
+            Bucket bucket = window.get(index);
+            if (bucket != null && bucket.epoch == epoch) {
+                return bucket;
+            }
+            Bucket fresh = new Bucket(epoch);
+            if (window.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Total and failed calls in the current window.
+     */
+    private long[] counts() {
+        long oldest = System.currentTimeMillis() / BUCKET_MILLIS - window.length();
+        long total = 0;
+        long failed = 0;
+        for (int i = 0; i < window.length(); i++) {
+            Bucket bucket = window.get(i);
+            if (bucket != null && bucket.epoch > oldest) {
+                long failures = bucket.failures.sum();
+                total += bucket.successes.sum() + failures;
+                failed += failures;
+            }
+        }
+        return new long[] {total, failed};
+    }
+
+    private void clearWindow() {
+        for (int i = 0; i < window.length(); i++) {
+            window.set(i, null);
+        }
+    }
+
+    private static final class Bucket {
+        private final long epoch;
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+        private void record(boolean success) {
+            (success ? successes : failures).increment();
+        }
+    }
+}
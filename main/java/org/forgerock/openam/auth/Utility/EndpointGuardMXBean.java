@@ -0,0 +1,31 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of an {@link EndpointGuard}.
+ */
+public interface EndpointGuardMXBean {
+
+    String getEndpoint();
+
+    /**
+     * {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}.
+     */
+    String getState();
+
+    int getFailureRatePercent();
+
+    long getCallsInWindow();
+
+    int getInFlight();
+
+    int getMaxConcurrent();
+
+    long getShortCircuitedCount();
+
+    long getBulkheadRejectedCount();
+
+    /**
+     * Closes the breaker and clears the rolling window.
+     */
+    void reset();
+}
@@ -0,0 +1,127 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When {@link HttpConnection} may send a second, identical GET to one endpoint because the first is slow.
+ *
+ * <p>Hedging is off unless {@code accesstoken.http.hedge.delayMs} or {@code accesstoken.http.hedge.percentile}
+ * is set. A hedge goes out once the first attempt has been outstanding for {@code delayMs}, or for the
+ * endpoint's observed {@code percentile} latency if that is longer (taken from its call statistics once they hold
+ * {@code minSamples}, default 100, calls, and refreshed once a second). Hedges are paid for from a budget: every hedgeable request earns
+ * {@code budgetPercent} (default 5) percent of a hedge, and at most {@code budgetBurst} (10) unspent hedges are
+ * kept, so hedges stay at about that share of the endpoint's GETs. Settings are read like the timeouts of
+ * {@link HttpConnection} and can be overridden under {@code accesstoken.http.endpoint.<host:port>.}.</p>
+ */
+public final class HedgePolicy implements HedgePolicyMXBean {
+
+    private static final long CREDITS_PER_HEDGE = 10_000;
+    private static final long PERCENTILE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String endpoint;
+    private final long delayNanos;
+    private final long percentile;
+    private final long minSamples;
+    private final long creditsPerRequest;
+    private final long maxCredits;
+    private final AtomicLong credits;
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final AtomicLong percentileDueAt = new AtomicLong(System.nanoTime());
+    private volatile long percentileNanos;
+    private volatile long lastDelayNanos;
+
+    HedgePolicy(String endpoint) {
+        this.endpoint = endpoint;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(HttpConnection.setting(endpoint, "hedge.delayMs", 0));
+        this.percentile = Math.min(HttpConnection.setting(endpoint, "hedge.percentile", 0), 100);
+        this.minSamples = HttpConnection.setting(endpoint, "hedge.minSamples", 100);
+        this.creditsPerRequest = HttpConnection.setting(endpoint, "hedge.budgetPercent", 5) * CREDITS_PER_HEDGE / 100;
+        this.maxCredits = HttpConnection.setting(endpoint, "hedge.budgetBurst", 10) * CREDITS_PER_HEDGE;
+        this.credits = new AtomicLong(maxCredits);
+        JmxSupport.register(this, "HedgePolicy", endpoint);
+    }
+
+    boolean isEnabled() {
+        return (delayNanos > 0 || percentile > 0) && creditsPerRequest > 0;
+    }
+
+    /**
+     * Returns how long to wait before hedging a request, and earns the request's share of the budget.
+     *
+     * @return the delay in nanoseconds, or -1 if the request should not be hedged yet because the percentile
+     * has too few samples and no fixed delay is set.
+     */
+    long delayNanos(LatencyHistogram latency) {
+        credits.accumulateAndGet(creditsPerRequest, (current, earned) -> Math.min(maxCredits, current + earned));
+        long delay = delayNanos;
+        if (percentile > 0 && latency.getCount() >= minSamples) {
+            delay = Math.max(delay, percentileNanos(latency));
+        }
+        lastDelayNanos = delay;
+        return delay > 0 ? delay : -1;
+    }
+
+    /**
+     * The endpoint's percentile latency. Reading it from the histogram walks every bucket, so it is recomputed
+     * at most once a second, by the request that finds it due, and the others use the last value.
+     */
+    private long percentileNanos(LatencyHistogram latency) {
+        long now = System.nanoTime();
+        long due = percentileDueAt.get();
+        if (now - due >= 0 && percentileDueAt.compareAndSet(due, now + PERCENTILE_REFRESH_NANOS)) {
+            percentileNanos = latency.getPercentileNanos(percentile);
+        }
+        return percentileNanos;
+    }
+
+    /**
+     * Spends one hedge from the budget.
+     *
+     * @return {@code false} if the budget is exhausted.
+     */
+    boolean tryHedge() {
+        long current;
+        do {
+            current = credits.get();
+            if (current < CREDITS_PER_HEDGE) {
+                budgetExhausted.increment();
+                return false;
+            }
+        } while (!credits.compareAndSet(current, current - CREDITS_PER_HEDGE));
+        hedges.increment();
+        return true;
+    }
+
+    void recordHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public double getDelayMillis() {
+        return lastDelayNanos / 1e6;
+    }
+
+    @Override
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    @Override
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link HedgePolicy} of one endpoint.
+ */
+public interface HedgePolicyMXBean {
+
+    String getEndpoint();
+
+    /**
+     * The delay after which the last hedgeable request would have been hedged.
+     */
+    double getDelayMillis();
+
+    long getHedgeCount();
+
+    /**
+     * How many hedges answered before the request they hedged.
+     */
+    long getHedgeWinCount();
+
+    /**
+     * How many hedges were not sent because the budget was spent.
+     */
+    long getBudgetExhaustedCount();
+}
@@ -0,0 +1,104 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency of the calls {@link HttpConnection} makes to one endpoint, overall and by status code.
+ *
+ * <p>Calls that fail without a response, such as connect failures and timeouts, are recorded under status
+ * {@link #NO_RESPONSE}. Histograms are indexed by status code in an array, so recording does not box the
+ * status or allocate once a status has been seen.</p>
+ */
+public final class HttpCallStats implements HttpCallStatsMXBean {
+
+    public static final int NO_RESPONSE = 0;
+
+    private static final int MAX_STATUS = 599;
+
+    private final String endpoint;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReferenceArray<LatencyHistogram> byStatus = new AtomicReferenceArray<>(MAX_STATUS + 1);
+
+    HttpCallStats(String endpoint) {
+        this.endpoint = endpoint;
+        JmxSupport.register(this, "HttpCallStats", endpoint);
+    }
+
+    /**
+     * Records a call that started at {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    void record(int statusCode, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        latency.record(elapsed);
+        int index = statusCode < 100 || statusCode > MAX_STATUS ? NO_RESPONSE : statusCode;
+        LatencyHistogram histogram = byStatus.get(index);
+        if (histogram == null) {
+            byStatus.compareAndSet(index, null, new LatencyHistogram());
+            histogram = byStatus.get(index);
+        }
+        histogram.record(elapsed);
+    }
+
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    /**
+     * The histograms of the status codes seen so far.
+     */
+    Map<Integer, LatencyHistogram> byStatus() {
+        Map<Integer, LatencyHistogram> seen = new TreeMap<>();
+        for (int i = 0; i <= MAX_STATUS; i++) {
+            LatencyHistogram histogram = byStatus.get(i);
+            if (histogram != null) {
+                seen.put(i, histogram);
+            }
+        }
+        return seen;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latency.getPercentileMillis(99.9);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        byStatus().forEach((status, histogram) -> counts.put(String.valueOf(status), histogram.getCount()));
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        byStatus().values().forEach(LatencyHistogram::reset);
+    }
+}
@@ -0,0 +1,28 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link HttpCallStats} of one endpoint.
+ */
+public interface HttpCallStatsMXBean {
+
+    String getEndpoint();
+
+    long getCount();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    /**
+     * Call counts keyed by status code, {@code 0} standing for calls that got no response.
+     */
+    Map<String, Long> getStatusCounts();
+
+    void reset();
+}
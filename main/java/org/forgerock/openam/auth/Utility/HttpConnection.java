@@ -1,16 +1,320 @@
 package org.forgerock.openam.auth.Utility;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plugin-wide HTTP client factory shared by all the nodes.
+ *
+ * <p>One keep-alive, HTTP/2 capable {@link HttpClient} is kept per endpoint (scheme, host and port) so that
+ * connect timeouts can differ between IDM and AM while every client shares the same bounded executor.
+ * Settings are read from system properties:</p>
+ * <ul>
+ *     <li>{@code accesstoken.http.threads} - size of the shared executor (default 8)</li>
+ *     <li>{@code accesstoken.http.version} - {@code HTTP_2} or {@code HTTP_1_1} (default {@code HTTP_2})</li>
+ *     <li>{@code accesstoken.http.connectTimeoutMs} / {@code accesstoken.http.requestTimeoutMs} - defaults
+ *     for every endpoint (5000 / 10000)</li>
+ *     <li>{@code accesstoken.http.endpoint.<host:port>.connectTimeoutMs} / {@code .requestTimeoutMs} -
+ *     per endpoint overrides</li>
+ * </ul>
+ *
+ * <p>Every call goes through the {@link EndpointGuard} of its endpoint, which fails it with
+ * {@link org.forgerock.openam.auth.Exception.EndpointUnavailableException} when the endpoint's circuit breaker is
+ * open or too many calls are already in flight.</p>
+ *
+ * <p>Asynchronous GETs can be hedged: when the endpoint's {@link HedgePolicy} is enabled and the first attempt is
+ * still outstanding after the policy's delay, an identical second request is sent, the first response wins and
+ * the other attempt is cancelled. Other methods, such as the consent PATCH and the token POST, and calls made
+ * through {@link #send} are never hedged.</p>
+ */
+@Singleton
 public class HttpConnection {
 
+    private static final String PREFIX = "accesstoken.http.";
+    private static final Map<String, Duration> REQUEST_TIMEOUTS = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<>();
+    private final Map<String, EndpointGuard> guards = new ConcurrentHashMap<>();
+    private final Map<String, HttpCallStats> callStats = new ConcurrentHashMap<>();
+    private final Map<String, HedgePolicy> hedgePolicies = new ConcurrentHashMap<>();
+    private volatile ExecutorService executor;
+    private volatile ExecutorService readerExecutor;
+
+    @Inject
+    public HttpConnection() {
+    }
+
+    /**
+     * Creates the shared executors. Called from the plugin on startup, and lazily by {@link #client(URI)} for
+     * tools that run outside AM.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        int threads = Integer.getInteger(PREFIX + "threads", 8);
+        AtomicInteger readers = new AtomicInteger();
+        readerExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "access-token-http-reader-" + readers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "access-token-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("HttpConnection started with {} threads", threads);
+    }
+
+    /**
+     * Drops the pooled clients and stops the shared executor. Called when AM shuts down.
+     */
+    public synchronized void shutdown() {
+        clients.clear();
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+            readerExecutor.shutdown();
+            readerExecutor = null;
+        }
+        logger.info("HttpConnection stopped");
+    }
+
+    /**
+     * Returns the pooled client for the endpoint of the given URI.
+     */
+    public HttpClient client(URI uri) {
+        if (executor == null) {
+            start();
+        }
+        return clients.computeIfAbsent(endpoint(uri), key -> HttpClient.newBuilder()
+                .version(HttpClient.Version.valueOf(System.getProperty(PREFIX + "version", "HTTP_2")))
+                .connectTimeout(timeout(key, "connectTimeoutMs", 5000))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build());
+    }
+
+    /**
+     * Returns the circuit breaker and bulkhead of the endpoint of the given URI.
+     */
+    public EndpointGuard guard(URI uri) {
+        return guards.computeIfAbsent(endpoint(uri), EndpointGuard::new);
+    }
+
+    /**
+     * Returns the call latency statistics of every endpoint called so far.
+     */
+    public Collection<HttpCallStats> callStats() {
+        return callStats.values();
+    }
+
+    private HttpCallStats stats(URI uri) {
+        return callStats.computeIfAbsent(endpoint(uri), HttpCallStats::new);
+    }
+
+    /**
+     * Returns the hedging policy of the endpoint of the given URI.
+     */
+    public HedgePolicy hedgePolicy(URI uri) {
+        return hedgePolicies.computeIfAbsent(endpoint(uri), HedgePolicy::new);
+    }
+
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        EndpointGuard guard = guard(request.uri());
+        HttpCallStats stats = stats(request.uri());
+        guard.acquire();
+        long start = System.nanoTime();
+        HttpResponse<T> response;
+        try {
+            response = client(request.uri()).send(request, handler);
+        } catch (InterruptedException e) {
+            guard.cancel();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            stats.record(HttpCallStats.NO_RESPONSE, start);
+            guard.complete(false);
+            throw e;
+        }
+        stats.record(response.statusCode(), start);
+        guard.complete(!EndpointGuard.isFailure(response.statusCode()));
+        return response;
+    }
+
+    /**
+     * Sends the request asynchronously, hedging it if it is a GET and the endpoint's hedging policy allows.
+     * Calls refused by the endpoint's guard complete exceptionally with
+     * {@link org.forgerock.openam.auth.Exception.EndpointUnavailableException}.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                            HttpResponse.BodyHandler<T> handler) {
+        if (!"GET".equals(request.method())) {
+            return attempt(request, handler);
+        }
+        HedgePolicy policy = hedgePolicy(request.uri());
+        long delayNanos = policy.isEnabled() ? policy.delayNanos(stats(request.uri()).latency()) : -1;
+        CompletableFuture<HttpResponse<T>> first = attempt(request, handler);
+        if (delayNanos < 0) {
+            return first;
+        }
+        Race<T> race = new Race<>(policy);
+        race.enter(first, false);
+        CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            if (!race.result.isDone() && policy.tryHedge()) {
+                race.enter(attempt(request, handler), true);
+            }
+        });
+        return race.result;
+    }
+
+    /**
+     * Sends one attempt of the request through the endpoint's guard. Cancelling the returned future aborts the
+     * attempt and releases its slot without counting it as a failure.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> attempt(HttpRequest request,
+                                                           HttpResponse.BodyHandler<T> handler) {
+        EndpointGuard guard = guard(request.uri());
+        HttpCallStats stats = stats(request.uri());
+        try {
+            guard.acquire();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> call;
+        try {
+            call = client(request.uri()).sendAsync(request, handler);
+        } catch (RuntimeException e) {
+            guard.complete(false);
+            throw e;
+        }
+        call.whenComplete((response, error) -> {
+            if (error instanceof CancellationException) {
+                guard.cancel();
+                return;
+            }
+            stats.record(error == null ? response.statusCode() : HttpCallStats.NO_RESPONSE, start);
+            guard.complete(error == null && !EndpointGuard.isFailure(response.statusCode()));
+        });
+        return call;
+    }
+
+    /**
+     * The attempts of one hedged request. The first response completes the result and cancels the other
+     * attempts; the result only fails once every attempt has failed.
+     */
+    private static final class Race<T> {
+        private final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        private final HedgePolicy policy;
+        private final Collection<CompletableFuture<HttpResponse<T>>> attempts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private Race(HedgePolicy policy) {
+            this.policy = policy;
+        }
+
+        private void enter(CompletableFuture<HttpResponse<T>> attempt, boolean hedge) {
+            outstanding.incrementAndGet();
+            attempts.add(attempt);
+            attempt.whenComplete((response, error) -> {
+                int left = outstanding.decrementAndGet();
+                if (error == null) {
+                    if (result.complete(response)) {
+                        if (hedge) {
+                            policy.recordHedgeWin();
+                        }
+                        attempts.forEach(other -> other.cancel(true));
+                    } else {
+                        discard(response);
+                    }
+                } else if (left == 0) {
+                    result.completeExceptionally(error);
+                }
+            });
+            if (result.isDone()) {
+                attempt.cancel(true);
+            }
+        }
+
+        /**
+         * Closes the body of a response that lost the race, so its connection is not held open.
+         */
+        private static void discard(HttpResponse<?> response) {
+            if (response.body() instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) response.body()).close();
+                } catch (Exception e) {
+                    // the response is not used
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the request and hands the streamed response body to the reader on the calling thread.
+     */
+    public <T> T read(HttpRequest request, ResponseReader<T> reader) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            return reader.read(response.statusCode(), body);
+        }
+    }
+
+    /**
+     * Sends the request asynchronously and reads the streamed response body on a reader thread, keeping
+     * blocking reads off the HTTP client's own executor.
+     */
+    public <T> CompletableFuture<T> readAsync(HttpRequest request, ResponseReader<T> reader) {
+        if (executor == null) {
+            start();
+        }
+        return sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenApplyAsync(response -> {
+            try (InputStream body = response.body()) {
+                return reader.read(response.statusCode(), body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, readerExecutor);
+    }
+
     public static HttpRequest getRequest(String url){
+        URI uri = URI.create(url);
         HttpRequest request = HttpRequest.newBuilder()
-			        .uri(URI.create(url))
+			        .uri(uri)
+			        .timeout(requestTimeout(uri))
 			        .header("X-OpenIDM-Username", "openidm-admin")
 			        .header("X-OpenIDM-Password", "openidm-admin")
 		            .GET()
@@ -21,7 +325,9 @@ public class HttpConnection {
 	public static HttpRequest sendRequest(String url, String method, Map<String, String> headersMap,
                                           String requestBody){
 		HttpRequest.Builder builder = HttpRequest.newBuilder();
-        builder.uri(URI.create(url))
+        URI uri = URI.create(url);
+        builder.uri(uri)
+                .timeout(requestTimeout(uri))
                 .header("X-OpenIDM-Username", "openidm-admin")
                 .header("X-OpenIDM-Password", "openidm-admin");
 
@@ -41,5 +347,42 @@ public class HttpConnection {
         }
         return builder.build();
 	}
-    
+
+    /**
+     * Returns the configured request timeout for the endpoint of the given URI.
+     */
+    public static Duration requestTimeout(URI uri) {
+        return REQUEST_TIMEOUTS.computeIfAbsent(endpoint(uri), key -> timeout(key, "requestTimeoutMs", 10000));
+    }
+
+    /**
+     * Reads a streamed response body.
+     *
+     * @param <T> the result type.
+     */
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+        T read(int statusCode, InputStream body) throws IOException;
+    }
+
+    static String endpoint(URI uri) {
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getHost() + ":" + port;
+    }
+
+    /**
+     * Reads {@code accesstoken.http.endpoint.<endpoint>.<name>}, then {@code accesstoken.http.<name>}.
+     */
+    static long setting(String endpoint, String name, long defaultValue) {
+        long value = Long.getLong(PREFIX + name, defaultValue);
+        return Long.getLong(PREFIX + "endpoint." + endpoint + "." + name, value);
+    }
+
+    private static Duration timeout(String endpoint, String name, long defaultMillis) {
+        return Duration.ofMillis(setting(endpoint, name, defaultMillis));
+    }
+
 }
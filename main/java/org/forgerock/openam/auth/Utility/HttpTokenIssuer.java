@@ -0,0 +1,55 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.auth.Exception.AccessTokenGenerationException;
+
+/**
+ * Issues tokens by posting the authorization code to AM's {@code access_token} endpoint.
+ *
+ * <p>The Basic authorization header of each client is encoded once, and only {@code access_token} is read
+ * from the response.</p>
+ */
+@Singleton
+public class HttpTokenIssuer implements TokenIssuer {
+
+    private final HttpConnection httpConnection;
+    private final Map<String, String> authorizations = new ConcurrentHashMap<>();
+
+    @Inject
+    public HttpTokenIssuer(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    @Override
+    public String issue(String tokenUrl, String clientId, String clientSecret, String authorizationCode)
+            throws IOException, InterruptedException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        headers.put("Authorization", authorizations.computeIfAbsent(clientId + ':' + clientSecret,
+                credentials -> "Basic " + Base64.getEncoder()
+                        .encodeToString(credentials.getBytes(StandardCharsets.UTF_8))));
+
+        String data = "grant_type=authorization_code&code=" + authorizationCode;
+        HttpRequest request = HttpConnection.sendRequest(tokenUrl + "?" + data, "POST", headers, null);
+        return httpConnection.read(request, (status, body) -> {
+            Map<String, String> fields = JsonExtractor.topLevel(body, JsonExtractor.DEFAULT_MAX_BYTES,
+                    "access_token", "error");
+            String accessToken = fields.get("access_token");
+            if (accessToken == null) {
+                throw new AccessTokenGenerationException("Access token generation failed with " + status
+                        + (fields.containsKey("error") ? ": " + fields.get("error") : ""));
+            }
+            return accessToken;
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.guice.core.InjectorHolder;
+import org.forgerock.oauth2.core.AccessToken;
+import org.forgerock.oauth2.core.AccessTokenService;
+import org.forgerock.oauth2.core.OAuth2Request;
+import org.forgerock.oauth2.core.OAuth2RequestFactory;
+import org.forgerock.oauth2.core.exceptions.OAuth2Exception;
+import org.forgerock.openam.auth.Exception.AccessTokenGenerationException;
+import org.restlet.Request;
+import org.restlet.data.ChallengeResponse;
+import org.restlet.data.ChallengeScheme;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues tokens by calling AM's OAuth2 {@link AccessTokenService} directly, skipping the loopback HTTP request,
+ * the servlet dispatch and the JSON round trip.
+ *
+ * <p>The request is built as the token endpoint would see it: a form POST with the client's Basic credentials
+ * and the realm taken from the {@code /realms/...} path of the configured token URL. If AM's OAuth2 services
+ * cannot be resolved, or the request cannot be built, the exchange falls back to {@link HttpTokenIssuer}. Once
+ * the service has been called nothing is retried over HTTP, whatever the failure: the code may already have been
+ * consumed, and presenting it again would make AM revoke the token it just issued.</p>
+ *
+ * <p>The realm is passed the way AM 7.3.0, the {@code am.version} of {@code jmh/pom.xml}, routes a token
+ * request: as the realm path in the {@code realm} attribute of the Restlet request, which its
+ * {@code RestletRealmRouter} sets and its {@link OAuth2RequestFactory} reads. Check that contract again before
+ * moving to another AM version; if the attribute is not read, tokens are issued in the root realm.</p>
+ */
+@Singleton
+public class InProcessTokenIssuer implements TokenIssuer {
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpTokenIssuer fallback;
+    private volatile AccessTokenService accessTokenService;
+    private volatile OAuth2RequestFactory requestFactory;
+    private volatile boolean unavailable;
+
+    @Inject
+    public InProcessTokenIssuer(HttpTokenIssuer fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public String issue(String tokenUrl, String clientId, String clientSecret, String authorizationCode)
+            throws IOException, InterruptedException {
+        if (unavailable || !resolve()) {
+            return fallback.issue(tokenUrl, clientId, clientSecret, authorizationCode);
+        }
+        OAuth2Request oauth2Request;
+        try {
+            Form form = new Form();
+            form.add("grant_type", "authorization_code");
+            form.add("code", authorizationCode);
+            Request request = new Request(Method.POST, tokenUrl, form.getWebRepresentation());
+            request.setChallengeResponse(new ChallengeResponse(ChallengeScheme.HTTP_BASIC, clientId, clientSecret));
+            request.getAttributes().put("realm", realm(tokenUrl));
+            oauth2Request = requestFactory.create(request);
+        } catch (RuntimeException | LinkageError e) {
+            logger.warn("In-process token request could not be built, falling back to HTTP", e);
+            return fallback.issue(tokenUrl, clientId, clientSecret, authorizationCode);
+        }
+        AccessToken token;
+        try {
+            token = accessTokenService.requestAccessToken(oauth2Request);
+        } catch (OAuth2Exception e) {
+            throw new AccessTokenGenerationException("Access token generation failed: " + e.getError());
+        } catch (RuntimeException | LinkageError e) {
+            logger.warn("In-process token issuance failed", e);
+            throw new AccessTokenGenerationException("Access token generation failed: " + e);
+        }
+        if (token == null || token.getTokenId() == null) {
+            throw new AccessTokenGenerationException("Access token generation failed");
+        }
+        return token.getTokenId();
+    }
+
+    private boolean resolve() {
+        if (accessTokenService != null) {
+            return true;
+        }
+        synchronized (this) {
+            if (accessTokenService == null && !unavailable) {
+                try {
+                    requestFactory = InjectorHolder.getInstance(OAuth2RequestFactory.class);
+                    accessTokenService = InjectorHolder.getInstance(AccessTokenService.class);
+                } catch (RuntimeException | LinkageError e) {
+                    logger.warn("AM OAuth2 services are not available, tokens will be issued over HTTP", e);
+                    unavailable = true;
+                }
+            }
+            return accessTokenService != null && requestFactory != null;
+        }
+    }
+
+    /**
+     * The realm of an {@code .../oauth2/realms/root/realms/sub/access_token} URL, {@code /sub} in this example.
+     */
+    static String realm(String tokenUrl) {
+        String[] segments = URI.create(tokenUrl).getPath().split("/");
+        StringBuilder realm = new StringBuilder();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            if ("realms".equals(segments[i]) && !"root".equals(segments[i + 1])) {
+                realm.append('/').append(segments[i + 1]);
+                i++;
+            }
+        }
+        return realm.length() == 0 ? "/" : realm.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the plugin's management beans with the platform MBean server.
+ */
+public final class JmxSupport {
+
+    public static final String DOMAIN = "org.forgerock.openam.auth.accesstoken";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+
+    private JmxSupport() {
+    }
+
+    /**
+     * Registers the bean under {@code DOMAIN:type=<type>}, replacing any bean left behind by a previous
+     * deployment. Failures are logged and otherwise ignored.
+     */
+    public static void register(Object bean, String type) {
+        registerAs(bean, DOMAIN + ":type=" + type);
+    }
+
+    /**
+     * Registers one of several beans of the same type under {@code DOMAIN:type=<type>,name=<name>}.
+     */
+    public static void register(Object bean, String type, String name) {
+        registerAs(bean, DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    private static void registerAs(Object bean, String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        } catch (Exception e) {
+            logger.warn("Failed to register MBean {}", objectName, e);
+        }
+    }
+}
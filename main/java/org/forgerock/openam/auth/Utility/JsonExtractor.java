@@ -0,0 +1,212 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Pulls a few scalar fields out of an IDM or AM JSON response without building a document tree.
+ *
+ * <p>Parsing stops as soon as the requested fields have been read, and only what was read up to then counts
+ * against the given limit (by default {@code accesstoken.http.maxResponseBytes}, 1 MiB); a response that needs
+ * more is rejected with an {@link IOException}. Up to {@code accesstoken.http.drainBytes} (default 64 KiB) of what
+ * is left is read and discarded, so a short response leaves its connection reusable. A longer remainder, such as
+ * a long consent history, is not read: closing the body aborts the response.</p>
+ */
+public final class JsonExtractor {
+
+    public static final int DEFAULT_MAX_BYTES = Integer.getInteger("accesstoken.http.maxResponseBytes", 1 << 20);
+
+    private static final int DRAIN_BYTES = Integer.getInteger("accesstoken.http.drainBytes", 64 << 10);
+
+    private static final JsonFactory FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private JsonExtractor() {
+    }
+
+    /**
+     * Reads fields of the top-level object.
+     *
+     * @return the requested fields that were present with a scalar value, as text.
+     */
+    public static Map<String, String> topLevel(InputStream body, int maxBytes, String... fields) throws IOException {
+        try (BoundedInputStream in = new BoundedInputStream(body, maxBytes)) {
+            Map<String, String> values = new HashMap<>();
+            JsonParser parser = FACTORY.createParser(in);
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                readObject(parser, new HashSet<>(Arrays.asList(fields)), values);
+            }
+            discardRemainder(in);
+            return values;
+        }
+    }
+
+    /**
+     * Reads fields of the first object in a top-level array field, for example the first entry of
+     * {@code ClientDetails} in a consent lookup.
+     *
+     * @return the requested fields of the first element, empty if the array is missing or empty.
+     */
+    public static Map<String, String> firstArrayElement(InputStream body, int maxBytes, String arrayField,
+            String... fields) throws IOException {
+        try (BoundedInputStream in = new BoundedInputStream(body, maxBytes)) {
+            Map<String, String> values = new HashMap<>();
+            JsonParser parser = FACTORY.createParser(in);
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (arrayField.equals(name) && value == JsonToken.START_ARRAY) {
+                        if (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readObject(parser, new HashSet<>(Arrays.asList(fields)), values);
+                        }
+                        break;
+                    }
+                    parser.skipChildren();
+                }
+            }
+            discardRemainder(in);
+            return values;
+        }
+    }
+
+    /**
+     * Reads fields of every object in a top-level array field, for example the {@code result} of an IDM query,
+     * handing each element to the consumer as soon as it has been read.
+     *
+     * @return the scalar top-level fields, such as {@code pagedResultsCookie}.
+     */
+    public static Map<String, String> forEachArrayElement(InputStream body, int maxBytes, String arrayField,
+            Consumer<Map<String, String>> consumer, String... fields) throws IOException {
+        try (BoundedInputStream in = new BoundedInputStream(body, maxBytes)) {
+            Map<String, String> topLevel = new HashMap<>();
+            JsonParser parser = FACTORY.createParser(in);
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (arrayField.equals(name) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            Map<String, String> element = new HashMap<>();
+                            readObject(parser, new HashSet<>(Arrays.asList(fields)), element);
+                            skipRest(parser);
+                            consumer.accept(element);
+                        }
+                    } else if (value.isScalarValue()) {
+                        if (value != JsonToken.VALUE_NULL) {
+                            topLevel.put(name, parser.getValueAsString());
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            discardRemainder(in);
+            return topLevel;
+        }
+    }
+
+    /**
+     * Skips the remaining fields of an object if {@link #readObject} stopped before its end.
+     */
+    private static void skipRest(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.END_OBJECT) {
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    private static void readObject(JsonParser parser, Set<String> wanted, Map<String, String> values)
+            throws IOException {
+        while (!wanted.isEmpty() && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value.isScalarValue() && wanted.remove(name)) {
+                if (value != JsonToken.VALUE_NULL) {
+                    values.put(name, parser.getValueAsString());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Reads and discards at most {@link #DRAIN_BYTES} of the rest of the body, past the size limit.
+     */
+    private static void discardRemainder(BoundedInputStream in) throws IOException {
+        InputStream rest = in.unbounded();
+        byte[] buffer = new byte[8192];
+        int left = DRAIN_BYTES;
+        while (left > 0) {
+            int n = rest.read(buffer, 0, Math.min(buffer.length, left));
+            if (n < 0) {
+                return;
+            }
+            left -= n;
+        }
+    }
+
+    /**
+     * Fails the read once more than the allowed number of bytes has been consumed.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private final long maxBytes;
+        private long count;
+
+        private BoundedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        private InputStream unbounded() {
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws IOException {
+            count += n;
+            if (count > maxBytes) {
+                throw new IOException("Response body exceeds " + maxBytes + " bytes");
+            }
+        }
+    }
+}
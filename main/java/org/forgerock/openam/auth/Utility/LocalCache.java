@@ -0,0 +1,181 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-heap cache where every entry carries its own time to live.
+ *
+ * <p>When the cache is full a new key is only admitted if it has been requested more often than the oldest
+ * entry, using a {@link FrequencySketch} (TinyLFU admission over a FIFO eviction queue). Expired entries are
+ * evicted first and are never returned. Invalidation only removes the entry: its key stays in the queue as a
+ * tombstone that eviction skips, and the queue is purged of tombstones once there are more of them than the
+ * cache holds entries at most, so invalidating takes amortized constant time. The entries are only visible to
+ * this JVM; see {@link ReplicatedCache} for a cache shared by the cluster.</p>
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public class LocalCache<K, V> implements Cache<K, V> {
+
+    private static final int MAX_EVICTION_ATTEMPTS = 8;
+
+    private final int maximumSize;
+    private final TimeSource clock;
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<K> order = new ConcurrentLinkedQueue<>();
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /** Keys in {@code order} without an entry of their own, left there by {@link #invalidate}. */
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    public LocalCache(int maximumSize) {
+        this(maximumSize, TimeSource.SYSTEM);
+    }
+
+    public LocalCache(int maximumSize, TimeSource clock) {
+        this.maximumSize = maximumSize;
+        this.clock = clock;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        sketch.increment(key);
+        Entry<V> entry = map.get(key);
+        if (entry == null || entry.expiresAt <= clock.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    @Override
+    public V peek(K key) {
+        Entry<V> entry = map.get(key);
+        return entry == null || entry.expiresAt <= clock.currentTimeMillis() ? null : entry.value;
+    }
+
+    /**
+     * Caches the value for the given number of milliseconds. The value may be rejected if the cache is full of
+     * more frequently used keys.
+     */
+    @Override
+    public void put(K key, V value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        Entry<V> entry = new Entry<>(value, clock.currentTimeMillis() + ttlMillis);
+        if (map.computeIfPresent(key, (k, old) -> entry) != null) {
+            return;
+        }
+        if (map.size() >= maximumSize && !makeRoom(key)) {
+            return;
+        }
+        if (map.putIfAbsent(key, entry) == null) {
+            order.add(key);
+        } else {
+            map.put(key, entry);
+        }
+    }
+
+    @Override
+    public void invalidate(K key) {
+        if (map.remove(key) != null && tombstones.incrementAndGet() > maximumSize) {
+            purgeTombstones();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        map.clear();
+        order.clear();
+        tombstones.set(0);
+    }
+
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    @Override
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long missCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private boolean makeRoom(K candidate) {
+        long now = clock.currentTimeMillis();
+        for (int attempt = 0; attempt < MAX_EVICTION_ATTEMPTS && map.size() >= maximumSize; attempt++) {
+            K victim = order.poll();
+            if (victim == null) {
+                break;
+            }
+            Entry<V> entry = map.get(victim);
+            if (entry == null) {
+                tombstones.decrementAndGet();
+                continue;
+            }
+            if (entry.expiresAt > now && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                order.add(victim);
+                return false;
+            }
+            if (map.remove(victim, entry)) {
+                evictions.increment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the keys without an entry from the queue, and the later copies of keys that were put again after
+     * being invalidated.
+     */
+    private void purgeTombstones() {
+        synchronized (order) {
+            if (tombstones.get() <= maximumSize) {
+                return;
+            }
+            Set<K> seen = new HashSet<>();
+            int[] purged = new int[1];
+            order.removeIf(key -> {
+                boolean tombstone = !map.containsKey(key) || !seen.add(key);
+                if (tombstone) {
+                    purged[0]++;
+                }
+                return tombstone;
+            });
+            tombstones.addAndGet(-purged[0]);
+        }
+    }
+
+    int queueLength() {
+        return order.size();
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link TimeSource} that stands still until it is set or advanced, for driving expiry deterministically in
+ * tests and benchmarks.
+ */
+public class ManualClock implements TimeSource {
+
+    private final AtomicLong now;
+
+    public ManualClock(long epochMillis) {
+        this.now = new AtomicLong(epochMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now.get();
+    }
+
+    public void set(long epochMillis) {
+        now.set(epochMillis);
+    }
+
+    public void advance(long amount, TimeUnit unit) {
+        now.addAndGet(unit.toMillis(amount));
+    }
+}
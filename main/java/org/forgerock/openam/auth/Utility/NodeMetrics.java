@@ -0,0 +1,151 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Collects the {@link NodeStats} of every node and the {@link HttpCallStats} of every endpoint, and exposes
+ * them in the Prometheus text format.
+ *
+ * <p>Each node and endpoint is also published as an MXBean. When {@code accesstoken.metrics.port} is set,
+ * {@link #start()} serves the text exposition on {@code /metrics} at that port, bound to
+ * {@code accesstoken.metrics.bindAddress} (default {@code 127.0.0.1}).</p>
+ */
+@Singleton
+public class NodeMetrics {
+
+    private static final String PREFIX = "accesstoken.metrics.";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpConnection httpConnection;
+    private final Map<String, NodeStats> nodes = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @Inject
+    public NodeMetrics(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    /**
+     * Returns the statistics of the named node, created on first use. Nodes look this up once, when they are
+     * constructed.
+     */
+    public NodeStats node(String name) {
+        return nodes.computeIfAbsent(name, NodeStats::new);
+    }
+
+    /**
+     * Starts the {@code /metrics} endpoint if a port is configured.
+     */
+    public synchronized void start() {
+        Integer port = Integer.getInteger(PREFIX + "port");
+        if (server != null || port == null) {
+            return;
+        }
+        String address = System.getProperty(PREFIX + "bindAddress", "127.0.0.1");
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        } catch (IOException e) {
+            logger.error("Failed to start the metrics endpoint on {}:{}", address, port, e);
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "access-token-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Metrics available on http://{}:{}/metrics", address, port);
+    }
+
+    public synchronized void shutdown() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Renders every node and endpoint in the Prometheus text exposition format.
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, NodeStats> sortedNodes = new TreeMap<>(nodes);
+
+        header(out, "accesstoken_node_duration_seconds", "summary", "Time spent in each node's process.");
+        sortedNodes.forEach((name, stats) ->
+                summary(out, "accesstoken_node_duration_seconds", "node=\"" + escape(name) + "\"", stats.latency()));
+
+        header(out, "accesstoken_node_outcomes_total", "counter", "Node invocations by outcome and reason.");
+        sortedNodes.forEach((name, stats) -> new TreeMap<>(stats.outcomes()).forEach((outcome, reasons) ->
+                new TreeMap<>(reasons).forEach((reason, counter) -> out.append("accesstoken_node_outcomes_total{node=\"")
+                        .append(escape(name)).append("\",outcome=\"").append(escape(outcome))
+                        .append("\",reason=\"").append(escape(reason)).append("\"} ").append(counter.sum())
+                        .append('\n'))));
+
+        header(out, "accesstoken_node_shared_state_max_bytes", "gauge",
+                "Largest estimated shared state each node handed back to AM.");
+        sortedNodes.forEach((name, stats) -> out.append("accesstoken_node_shared_state_max_bytes{node=\"")
+                .append(escape(name)).append("\"} ").append(stats.getMaxSharedStateBytes()).append('\n'));
+        header(out, "accesstoken_node_shared_state_over_budget_total", "counter",
+                "Shared states over the accesstoken.sharedState.maxBytes budget.");
+        sortedNodes.forEach((name, stats) -> out.append("accesstoken_node_shared_state_over_budget_total{node=\"")
+                .append(escape(name)).append("\"} ").append(stats.getSharedStateOverBudgetCount()).append('\n'));
+
+        Map<String, HttpCallStats> endpoints = new TreeMap<>();
+        httpConnection.callStats().forEach(stats -> endpoints.put(stats.getEndpoint(), stats));
+        header(out, "accesstoken_http_request_duration_seconds", "summary",
+                "Outbound HTTP calls by endpoint and status code, 0 meaning no response.");
+        endpoints.forEach((endpoint, stats) -> stats.byStatus().forEach((status, histogram) ->
+                summary(out, "accesstoken_http_request_duration_seconds",
+                        "endpoint=\"" + escape(endpoint) + "\",status=\"" + status + "\"", histogram)));
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentileNanos(quantile * 100) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumNanos() / 1e9)
+                .append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,183 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency and outcome counts of one node's {@code process}.
+ *
+ * <p>Outcomes are counted by the action's outcome and a short reason given by the node, such as
+ * {@code ok}, {@code expired} or {@code client_not_found}. Reasons are expected to be string constants, so
+ * after the first invocation with a given reason recording neither locks nor allocates.</p>
+ *
+ * <p>When an action replaces the shared state, which AM then serializes, its size is estimated and checked
+ * against {@code accesstoken.sharedState.maxBytes} (default 4096). Oversized states are counted, and logged at
+ * most once a minute per node.</p>
+ */
+public final class NodeStats implements NodeStatsMXBean {
+
+    private static final String CALLBACKS = "callbacks";
+    private static final long SHARED_STATE_BUDGET = Long.getLong("accesstoken.sharedState.maxBytes", 4096);
+    private static final long WARN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final String node;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<String, Map<String, LongAdder>> outcomes = new ConcurrentHashMap<>();
+    private final LongAccumulator maxSharedStateBytes = new LongAccumulator(Math::max, 0);
+    private final LongAdder sharedStateOverBudget = new LongAdder();
+    private volatile long lastWarnNanos = System.nanoTime() - WARN_INTERVAL_NANOS;
+
+    NodeStats(String node) {
+        this.node = node;
+        JmxSupport.register(this, "NodeStats", node);
+    }
+
+    /**
+     * Records an invocation that started at {@code startNanos}, a {@link System#nanoTime()} reading.
+     *
+     * @return the action, so that nodes can record on their return statements.
+     */
+    public Action record(long startNanos, String reason, Action action) {
+        latency.recordSince(startNanos);
+        String outcome = action.outcome == null ? CALLBACKS : action.outcome;
+        Map<String, LongAdder> reasons = outcomes.get(outcome);
+        if (reasons == null) {
+            reasons = outcomes.computeIfAbsent(outcome, key -> new ConcurrentHashMap<>());
+        }
+        LongAdder counter = reasons.get(reason);
+        if (counter == null) {
+            counter = reasons.computeIfAbsent(reason, key -> new LongAdder());
+        }
+        counter.increment();
+        if (action.sharedState != null) {
+            checkSharedState(action.sharedState);
+        }
+        return action;
+    }
+
+    private void checkSharedState(JsonValue sharedState) {
+        long bytes = estimateBytes(sharedState.getObject());
+        maxSharedStateBytes.accumulate(bytes);
+        if (bytes > SHARED_STATE_BUDGET) {
+            sharedStateOverBudget.increment();
+            long now = System.nanoTime();
+            long last = lastWarnNanos;
+            if (now - last >= WARN_INTERVAL_NANOS) {
+                lastWarnNanos = now;
+                logger.warn("{} emitted a shared state of about {} bytes, over the {} byte budget; keys: {}", node,
+                        bytes, SHARED_STATE_BUDGET, sharedState.keys());
+            }
+        }
+    }
+
+    /**
+     * Estimates the size of a value serialized as JSON, without serializing it.
+     */
+    static long estimateBytes(Object value) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof JsonValue) {
+            return estimateBytes(((JsonValue) value).getObject());
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() + 2;
+        }
+        if (value instanceof Map) {
+            long bytes = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += String.valueOf(entry.getKey()).length() + 4 + estimateBytes(entry.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof Collection) {
+            long bytes = 2;
+            for (Object element : (Collection<?>) value) {
+                bytes += estimateBytes(element) + 1;
+            }
+            return bytes;
+        }
+        return String.valueOf(value).length();
+    }
+
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    Map<String, Map<String, LongAdder>> outcomes() {
+        return outcomes;
+    }
+
+    @Override
+    public String getNode() {
+        return node;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = latency.getCount();
+        return count == 0 ? 0 : latency.getSumNanos() / 1e6 / count;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latency.getPercentileMillis(99.9);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getOutcomes() {
+        Map<String, Long> counts = new TreeMap<>();
+        outcomes.forEach((outcome, reasons) ->
+                reasons.forEach((reason, counter) -> counts.put(outcome + "/" + reason, counter.sum())));
+        return counts;
+    }
+
+    @Override
+    public long getMaxSharedStateBytes() {
+        return maxSharedStateBytes.get();
+    }
+
+    @Override
+    public long getSharedStateOverBudgetCount() {
+        return sharedStateOverBudget.sum();
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        outcomes.values().forEach(reasons -> reasons.values().forEach(LongAdder::reset));
+        maxSharedStateBytes.reset();
+        sharedStateOverBudget.reset();
+    }
+}
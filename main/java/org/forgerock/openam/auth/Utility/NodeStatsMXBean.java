@@ -0,0 +1,40 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link NodeStats} of one node.
+ */
+public interface NodeStatsMXBean {
+
+    String getNode();
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    /**
+     * Invocation counts keyed by {@code <outcome>/<reason>}, for example {@code false/signature_invalid}.
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * The largest estimated size, in bytes, of a shared state the node handed back to AM.
+     */
+    long getMaxSharedStateBytes();
+
+    /**
+     * How often that state was over the {@code accesstoken.sharedState.maxBytes} budget.
+     */
+    long getSharedStateOverBudgetCount();
+
+    void reset();
+}
@@ -0,0 +1,173 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact JWS client assertion, split and decoded once per tree run.
+ *
+ * <p>The segment boundaries are found with a plain scan and the signing input is copied straight from the
+ * token characters, so verification does not need any further substring or {@code getBytes} copies. The first
+ * node that needs the assertion parses it from the {@code Authorization} header through {@link #fromContext},
+ * which keeps it in the tree's transient state under {@link #TRANSIENT_KEY}; the later nodes of the tree run get
+ * the same instance back as long as the header still carries the same token. Transient state is dropped when
+ * the tree run ends, so the assertion is never kept past it. A value under the key that is not a parsed
+ * assertion, as after transient state has been serialized, is parsed again.</p>
+ */
+public final class ParsedJwt {
+
+    public static final String TRANSIENT_KEY = "clientAssertion";
+
+    private static final String BEARER = "Bearer ";
+
+    private final String token;
+    private final byte[] signingInput;
+    private final byte[] signature;
+    private final JSONObject header;
+    private final JSONObject claims;
+    private final long expirySeconds;
+    private String hash;
+
+    private ParsedJwt(String token, byte[] signingInput, byte[] signature, JSONObject header, JSONObject claims) {
+        this.token = token;
+        this.signingInput = signingInput;
+        this.signature = signature;
+        this.header = header;
+        this.claims = claims;
+        this.expirySeconds = claims.optLong("exp", -1);
+    }
+
+    /**
+     * Splits and decodes a compact JWS.
+     *
+     * @throws IllegalArgumentException if the token is not a three part, Base64url encoded JWS.
+     */
+    public static ParsedJwt parse(String token) {
+        int first = token.indexOf('.');
+        int second = first < 0 ? -1 : token.indexOf('.', first + 1);
+        if (first <= 0 || second < 0 || token.indexOf('.', second + 1) >= 0) {
+            throw new IllegalArgumentException("Not a compact JWS");
+        }
+        int length = token.length();
+        byte[] ascii = new byte[length];
+        for (int i = 0; i < length; i++) {
+            ascii[i] = (byte) token.charAt(i);
+        }
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        try {
+            JSONObject header = json(decoder.decode(ByteBuffer.wrap(ascii, 0, first)));
+            JSONObject claims = json(decoder.decode(ByteBuffer.wrap(ascii, first + 1, second - first - 1)));
+            ByteBuffer signature = decoder.decode(ByteBuffer.wrap(ascii, second + 1, length - second - 1));
+            byte[] signingInput = new byte[second];
+            System.arraycopy(ascii, 0, signingInput, 0, second);
+            return new ParsedJwt(token, signingInput, remaining(signature), header, claims);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid JWS JSON", e);
+        }
+    }
+
+    /**
+     * Returns the client assertion of the current tree run, parsed from the bearer token of the
+     * {@code Authorization} header, or the instance an earlier node of the run parsed from the same token. The
+     * node must return {@code context.transientState} for the instance to reach the later nodes.
+     */
+    public static ParsedJwt fromContext(TreeContext context) {
+        List<String> authorization = context.request.headers.get("authorization");
+        if (authorization == null || authorization.isEmpty()
+                || !authorization.get(0).regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            throw new IllegalArgumentException("No bearer token in the request");
+        }
+        String header = authorization.get(0);
+        Object shared = context.transientState.get(TRANSIENT_KEY).getObject();
+        if (shared instanceof ParsedJwt) {
+            ParsedJwt last = (ParsedJwt) shared;
+            if (header.length() - BEARER.length() == last.token.length()
+                    && header.regionMatches(BEARER.length(), last.token, 0, last.token.length())) {
+                return last;
+            }
+        }
+        ParsedJwt jwt = parse(header.substring(BEARER.length()));
+        context.transientState.put(TRANSIENT_KEY, jwt);
+        return jwt;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * The ASCII bytes of {@code header.payload}, the data covered by the signature.
+     */
+    public byte[] getSigningInput() {
+        return signingInput;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public String getAlgorithm() {
+        return header.optString("alg", null);
+    }
+
+    public String getKeyId() {
+        return header.optString("kid", null);
+    }
+
+    public String getSubject() {
+        return claims.optString("sub", null);
+    }
+
+    public String getJwtId() {
+        return claims.optString("jti", null);
+    }
+
+    /**
+     * The {@code exp} claim in seconds since the epoch, or {@code -1} if the claim is absent.
+     */
+    public long getExpirySeconds() {
+        return expirySeconds;
+    }
+
+    /**
+     * The Base64url encoded SHA-256 of the whole token, computed on first use.
+     */
+    public String getHash() {
+        if (hash == null) {
+            try {
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                byte[] digest = sha256.digest(token.getBytes(StandardCharsets.US_ASCII));
+                hash = Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return hash;
+    }
+
+    public JSONObject getClaims() {
+        return claims;
+    }
+
+    private static JSONObject json(ByteBuffer decoded) throws JSONException {
+        return new JSONObject(new String(decoded.array(), decoded.arrayOffset() + decoded.position(),
+                decoded.remaining(), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        if (buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,204 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Remembers the client assertions that have been used, until they expire, so that none is accepted twice.
+ *
+ * <p>Assertions are tracked by {@code jti} (or by the assertion hash when there is none) until their
+ * {@code exp}. Assertions whose signature failed to verify are remembered by hash for
+ * {@code accesstoken.replay.invalidTtlSeconds} (default 300) so repeated bad tokens are rejected without
+ * another signature check. Both sets are bounded ({@code accesstoken.replay.maxEntries}, default 1000000, and
+ * {@code accesstoken.replay.maxInvalidEntries}, default 100000) and expire through one {@link TimingWheel}
+ * turned once a second. When the used set is full new assertions are rejected rather than accepted
+ * unchecked.</p>
+ *
+ * <p>With cache replication configured both sets are shared with the other AM instances through the
+ * {@link CacheReplicator}, so an assertion used on one instance is rejected on the others too. Replication takes
+ * a network round trip, so an assertion replayed to another instance within that window may still be accepted
+ * there; assertions should stay short-lived.</p>
+ */
+@Singleton
+public class ReplayGuard implements ReplayGuardMXBean {
+
+    /**
+     * The result of {@link #markUsed}.
+     */
+    public enum Result {
+        /** First use of the assertion. */
+        ACCEPTED,
+        /** The assertion has been used before. */
+        REPLAYED,
+        /** The store is full, the assertion could not be recorded. */
+        CAPACITY
+    }
+
+    private static final String PREFIX = "accesstoken.replay.";
+    private static final String USED = "u:";
+    private static final String INVALID = "i:";
+    private static final String USED_CACHE = "replay.used";
+    private static final String INVALID_CACHE = "replay.invalid";
+
+    private final int maxEntries = Integer.getInteger(PREFIX + "maxEntries", 1000000);
+    private final int maxInvalidEntries = Integer.getInteger(PREFIX + "maxInvalidEntries", 100000);
+    private final long invalidTtlMillis = TimeUnit.SECONDS.toMillis(Long.getLong(PREFIX + "invalidTtlSeconds", 300));
+    private final ConcurrentHashMap<String, Long> used = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> invalid = new ConcurrentHashMap<>();
+    private final TimeSource clock;
+    private final CacheReplicator replicator;
+    private final TimingWheel<String> wheel;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder capacityRejections = new LongAdder();
+    private final LongAdder invalidHits = new LongAdder();
+    private ScheduledExecutorService ticker;
+
+    public ReplayGuard(TimeSource clock) {
+        this(clock, CacheReplicator.local());
+    }
+
+    @Inject
+    public ReplayGuard(TimeSource clock, CacheReplicator replicator) {
+        this.clock = clock;
+        this.replicator = replicator;
+        this.wheel = new TimingWheel<>(1000, clock.currentTimeMillis(), this::expire);
+        replicator.register(USED_CACHE, (op, key, ttlMillis, value) -> remember(used, USED, maxEntries, key,
+                ttlMillis));
+        replicator.register(INVALID_CACHE, (op, key, ttlMillis, value) -> remember(invalid, INVALID,
+                maxInvalidEntries, key, ttlMillis));
+        JmxSupport.register(this, "ReplayGuard");
+    }
+
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "access-token-replay-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> wheel.advance(clock.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Records the use of an assertion.
+     *
+     * @param id The {@code jti}, qualified by client, or the assertion hash.
+     * @param expiresAtMillis When the assertion expires; it is remembered until then.
+     */
+    public Result markUsed(String id, long expiresAtMillis) {
+        if (ticker == null) {
+            start();
+        }
+        long now = clock.currentTimeMillis();
+        Long previous = used.get(id);
+        if (previous != null && previous > now) {
+            replays.increment();
+            return Result.REPLAYED;
+        }
+        if (used.size() >= maxEntries) {
+            capacityRejections.increment();
+            return Result.CAPACITY;
+        }
+        Long existing = previous == null ? used.putIfAbsent(id, expiresAtMillis)
+                : (used.replace(id, previous, expiresAtMillis) ? null : used.get(id));
+        if (existing != null) {
+            replays.increment();
+            return Result.REPLAYED;
+        }
+        wheel.schedule(USED + id, expiresAtMillis);
+        replicator.publish(USED_CACHE, CacheReplicator.Op.PUT, id, expiresAtMillis - now, null, null);
+        accepted.increment();
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Returns {@code true} if an assertion with this hash recently failed signature verification.
+     */
+    public boolean isKnownInvalid(String hash) {
+        Long until = invalid.get(hash);
+        if (until != null && until > clock.currentTimeMillis()) {
+            invalidHits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public void recordInvalid(String hash) {
+        if (invalid.size() >= maxInvalidEntries) {
+            return;
+        }
+        long until = clock.currentTimeMillis() + invalidTtlMillis;
+        if (invalid.putIfAbsent(hash, until) == null) {
+            wheel.schedule(INVALID + hash, until);
+            replicator.publish(INVALID_CACHE, CacheReplicator.Op.PUT, hash, invalidTtlMillis, null, null);
+        }
+    }
+
+    /**
+     * Adds an entry another instance recorded, unless this instance already tracks it or the set is full.
+     */
+    private void remember(ConcurrentHashMap<String, Long> set, String prefix, int maximum, String id,
+            long ttlMillis) {
+        if (set.size() >= maximum) {
+            return;
+        }
+        long until = clock.currentTimeMillis() + ttlMillis;
+        if (set.putIfAbsent(id, until) == null) {
+            wheel.schedule(prefix + id, until);
+        }
+    }
+
+    private void expire(String key, Long deadline) {
+        if (key.startsWith(USED)) {
+            used.remove(key.substring(USED.length()), deadline);
+        } else {
+            invalid.remove(key.substring(INVALID.length()), deadline);
+        }
+    }
+
+    @Override
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getReplayCount() {
+        return replays.sum();
+    }
+
+    @Override
+    public long getCapacityRejectedCount() {
+        return capacityRejections.sum();
+    }
+
+    @Override
+    public long getInvalidSignatureHitCount() {
+        return invalidHits.sum();
+    }
+
+    @Override
+    public long getTrackedAssertionCount() {
+        return used.size();
+    }
+
+    @Override
+    public long getTrackedInvalidSignatureCount() {
+        return invalid.size();
+    }
+}
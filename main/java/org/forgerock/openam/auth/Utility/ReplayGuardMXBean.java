@@ -0,0 +1,19 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of the {@link ReplayGuard}.
+ */
+public interface ReplayGuardMXBean {
+
+    long getAcceptedCount();
+
+    long getReplayCount();
+
+    long getCapacityRejectedCount();
+
+    long getInvalidSignatureHitCount();
+
+    long getTrackedAssertionCount();
+
+    long getTrackedInvalidSignatureCount();
+}
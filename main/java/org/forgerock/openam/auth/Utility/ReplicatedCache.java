@@ -0,0 +1,95 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * A {@link LocalCache} shared with the other AM instances of the cluster.
+ *
+ * <p>Puts and invalidations are applied locally and sent to the other instances through the
+ * {@link CacheReplicator}, and theirs are applied here, so a value loaded by any instance serves them all and an
+ * invalidation on one reaches every instance. Reads never leave the JVM. Remote puts go through the same
+ * admission as local ones, so a full cache keeps its most used entries.</p>
+ *
+ * @param <V> the value type.
+ */
+public class ReplicatedCache<V> implements Cache<String, V>, CacheReplicator.Listener {
+
+    private final String name;
+    private final LocalCache<String, V> local;
+    private final CacheReplicator replicator;
+    private final CacheCodec<V> codec;
+
+    ReplicatedCache(String name, LocalCache<String, V> local, CacheReplicator replicator, CacheCodec<V> codec) {
+        this.name = name;
+        this.local = local;
+        this.replicator = replicator;
+        this.codec = codec;
+        replicator.register(name, this);
+    }
+
+    @Override
+    public V getIfPresent(String key) {
+        return local.getIfPresent(key);
+    }
+
+    @Override
+    public V peek(String key) {
+        return local.peek(key);
+    }
+
+    @Override
+    public void put(String key, V value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        local.put(key, value, ttlMillis);
+        replicator.publish(name, CacheReplicator.Op.PUT, key, ttlMillis, value, codec);
+    }
+
+    @Override
+    public void invalidate(String key) {
+        local.invalidate(key);
+        replicator.publish(name, CacheReplicator.Op.INVALIDATE, key, 0, null, codec);
+    }
+
+    @Override
+    public void invalidateAll() {
+        local.invalidateAll();
+        replicator.publish(name, CacheReplicator.Op.CLEAR, "", 0, null, codec);
+    }
+
+    @Override
+    public void apply(CacheReplicator.Op op, String key, long ttlMillis, DataInput value) throws IOException {
+        switch (op) {
+        case PUT:
+            local.put(key, codec.read(value), ttlMillis);
+            break;
+        case INVALIDATE:
+            local.invalidate(key);
+            break;
+        default:
+            local.invalidateAll();
+        }
+    }
+
+    @Override
+    public long size() {
+        return local.size();
+    }
+
+    @Override
+    public long hitCount() {
+        return local.hitCount();
+    }
+
+    @Override
+    public long missCount() {
+        return local.missCount();
+    }
+
+    @Override
+    public long evictionCount() {
+        return local.evictionCount();
+    }
+}
@@ -0,0 +1,105 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * The JWS algorithms accepted for client assertions, with the JCA signature each one is verified with.
+ *
+ * <p>RS256 and PS256 cost the same RSA public key operation, which grows with the key size. ES256 and EdDSA
+ * keys and signatures are much smaller and far cheaper for clients to sign with, but verifying them is not
+ * necessarily cheaper: compare the {@code verify*} results of {@code NodeInternalsBenchmark} on the target JVM
+ * before moving clients. Every algorithm only accepts its own key type, so a key can never be used with an
+ * algorithm it was not made for.</p>
+ */
+public enum SignatureAlgorithm {
+
+    RS256("SHA256withRSA", null),
+    PS256("RSASSA-PSS", new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1)),
+    /** ECDSA on P-256, with the fixed length {@code R || S} signature JWS uses. */
+    ES256("SHA256withECDSAinP1363Format", null),
+    /** EdDSA with Ed25519 keys; Ed448 keys are not accepted. */
+    EdDSA("Ed25519", null);
+
+    private final String jcaName;
+    private final AlgorithmParameterSpec parameters;
+
+    SignatureAlgorithm(String jcaName, AlgorithmParameterSpec parameters) {
+        this.jcaName = jcaName;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Returns the algorithm named by a JWS {@code alg} header or JWK {@code alg} member.
+     *
+     * @return the algorithm, or {@code null} for {@code none}, HMAC and any other algorithm not accepted here.
+     */
+    public static SignatureAlgorithm fromName(String name) {
+        if (name != null) {
+            for (SignatureAlgorithm algorithm : values()) {
+                if (algorithm.name().equals(name)) {
+                    return algorithm;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether signatures made with this algorithm can be verified with the given key.
+     */
+    public boolean supports(PublicKey key) {
+        switch (this) {
+        case RS256:
+        case PS256:
+            return key instanceof RSAPublicKey;
+        case ES256:
+            return key instanceof ECPublicKey && ((ECPublicKey) key).getParams().getCurve().getField()
+                    .getFieldSize() == 256;
+        default:
+            return key instanceof EdECPublicKey && NamedParameterSpec.ED25519.getName()
+                    .equalsIgnoreCase(((EdECPublicKey) key).getParams().getName());
+        }
+    }
+
+    /**
+     * Returns a new, uninitialised JCA signature for this algorithm.
+     */
+    public Signature newSignature() throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(jcaName);
+        if (parameters != null) {
+            signature.setParameter(parameters);
+        }
+        return signature;
+    }
+
+    /**
+     * Generates a key pair this algorithm accepts: 2048-bit RSA, P-256 or Ed25519.
+     */
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        switch (this) {
+        case RS256:
+        case PS256:
+            KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+            rsa.initialize(2048);
+            return rsa.generateKeyPair();
+        case ES256:
+            KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+            ec.initialize(new ECGenParameterSpec("secp256r1"));
+            return ec.generateKeyPair();
+        default:
+            return KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        }
+    }
+}
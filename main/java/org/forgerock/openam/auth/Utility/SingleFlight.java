@@ -0,0 +1,86 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent identical calls into one: while a call for a key is in flight, later callers for the
+ * same key wait for its result instead of making their own.
+ *
+ * <p>Only in-flight calls are shared. The key is released as soon as the call completes, so results, and in
+ * particular failures, are never reused by later callers. Every caller gets its own view of the shared result,
+ * with its own timeout, so a caller that times out or cancels does not affect the others.</p>
+ *
+ * @param <K> the key type, typically the request {@link java.net.URI}.
+ * @param <V> the result type.
+ */
+public final class SingleFlight<K, V> implements SingleFlightMXBean {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * @param name The name the counters are registered under over JMX.
+     */
+    public SingleFlight(String name) {
+        JmxSupport.register(this, "SingleFlight", name);
+    }
+
+    /**
+     * Joins the call in flight for the key, or starts one.
+     *
+     * @param key Identifies identical calls.
+     * @param call Starts the call when none is in flight.
+     * @param timeout How long this caller waits before its view fails with a
+     * {@link java.util.concurrent.TimeoutException}.
+     * @return this caller's view of the shared result.
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call, Duration timeout) {
+        calls.increment();
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            shared.increment();
+            return view(existing, timeout);
+        }
+        CompletableFuture<V> upstream;
+        try {
+            upstream = call.get();
+        } catch (RuntimeException e) {
+            upstream = CompletableFuture.failedFuture(e);
+        }
+        upstream.whenComplete((value, error) -> {
+            inFlight.remove(key, flight);
+            if (error != null) {
+                flight.completeExceptionally(error);
+            } else {
+                flight.complete(value);
+            }
+        });
+        return view(flight, timeout);
+    }
+
+    private static <V> CompletableFuture<V> view(CompletableFuture<V> flight, Duration timeout) {
+        return flight.copy().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getSharedCount() {
+        return shared.sum();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,16 @@
+package org.forgerock.openam.auth.Utility;
+
+/**
+ * Management interface of a {@link SingleFlight}.
+ */
+public interface SingleFlightMXBean {
+
+    long getCallCount();
+
+    /**
+     * The calls that joined a request already in flight instead of sending their own.
+     */
+    long getSharedCount();
+
+    long getInFlight();
+}
@@ -0,0 +1,22 @@
+package org.forgerock.openam.auth.Utility;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * The wall clock used for expiry checks, in milliseconds since the epoch.
+ *
+ * <p>In AM this is the shared {@link CoarseClock}. {@link #SYSTEM} reads {@link System#currentTimeMillis()}
+ * directly, and {@link ManualClock} only moves when told to.</p>
+ */
+@ImplementedBy(CoarseClock.class)
+public interface TimeSource {
+
+    /** Reads {@link System#currentTimeMillis()} on every call. */
+    TimeSource SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+
+    default long currentTimeSeconds() {
+        return currentTimeMillis() / 1000;
+    }
+}
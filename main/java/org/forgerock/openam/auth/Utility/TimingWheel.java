@@ -0,0 +1,113 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical timing wheel that reports keys once their deadline has passed.
+ *
+ * <p>Four levels of 64 slots each cover about 194 days at a one second tick. Scheduling is O(1) and
+ * thread safe; {@link #advance(long)} must be called from a single thread, normally once per tick. Entries
+ * in the higher levels are cascaded down as the wheel turns, so there is no per-entry timer task. A deadline
+ * may be reported up to one tick late; callers that need exact expiry must still compare the deadline
+ * themselves.</p>
+ *
+ * @param <K> the key type.
+ */
+public final class TimingWheel<K> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Queue<Timer<K>>[][] wheels;
+    private final BiConsumer<K, Long> onExpiry;
+    private volatile long currentTick;
+
+    /**
+     * @param tickMillis The wheel resolution.
+     * @param startMillis The current time.
+     * @param onExpiry Called with the key and its deadline once the deadline has passed.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public TimingWheel(long tickMillis, long startMillis, BiConsumer<K, Long> onExpiry) {
+        this.tickMillis = tickMillis;
+        this.onExpiry = onExpiry;
+        this.currentTick = startMillis / tickMillis;
+        this.wheels = new Queue[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheels[level][slot] = new ConcurrentLinkedQueue<>();
+            }
+        }
+    }
+
+    public void schedule(K key, long deadlineMillis) {
+        place(new Timer<>(key, deadlineMillis, (deadlineMillis + tickMillis - 1) / tickMillis), currentTick);
+    }
+
+    /**
+     * Turns the wheel up to the given time, reporting every key whose deadline has passed.
+     */
+    public void advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        long tick = currentTick;
+        while (tick < target) {
+            tick++;
+            currentTick = tick;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(wheels[level][(int) ((tick >>> (BITS * level)) & MASK)], tick);
+                }
+            }
+            Queue<Timer<K>> slot = wheels[0][(int) (tick & MASK)];
+            Timer<K> timer;
+            while ((timer = slot.poll()) != null) {
+                if (timer.deadlineTick <= tick) {
+                    onExpiry.accept(timer.key, timer.deadlineMillis);
+                } else {
+                    place(timer, tick);
+                }
+            }
+        }
+    }
+
+    private void cascade(Queue<Timer<K>> slot, long tick) {
+        Timer<K> timer;
+        while ((timer = slot.poll()) != null) {
+            if (timer.deadlineTick <= tick) {
+                onExpiry.accept(timer.key, timer.deadlineMillis);
+            } else {
+                place(timer, tick);
+            }
+        }
+    }
+
+    private void place(Timer<K> timer, long tick) {
+        long deadlineTick = Math.max(timer.deadlineTick, tick + 1);
+        long delta = deadlineTick - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        if (delta >= (1L << (BITS * LEVELS))) {
+            deadlineTick = tick + (1L << (BITS * LEVELS)) - 1;
+        }
+        wheels[level][(int) ((deadlineTick >>> (BITS * level)) & MASK)].add(timer);
+    }
+
+    private static final class Timer<K> {
+        private final K key;
+        private final long deadlineMillis;
+        private final long deadlineTick;
+
+        private Timer(K key, long deadlineMillis, long deadlineTick) {
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+
+/**
+ * Exchanges an authorization code for an access token.
+ */
+public interface TokenIssuer {
+
+    /**
+     * @param tokenUrl The AM {@code access_token} endpoint of the realm the client is registered in.
+     * @param clientId The OAuth2 client.
+     * @param clientSecret The client's secret.
+     * @param authorizationCode The code to exchange.
+     * @return the access token.
+     * @throws org.forgerock.openam.auth.Exception.AccessTokenGenerationException if AM did not issue a token.
+     */
+    String issue(String tokenUrl, String clientId, String clientSecret, String authorizationCode)
+            throws IOException, InterruptedException;
+}
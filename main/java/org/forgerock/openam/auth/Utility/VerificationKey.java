@@ -0,0 +1,98 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A parsed verification key together with the verifiers for the algorithms it can be used with.
+ *
+ * <p>Instances are immutable apart from their verifier pools, so one instance is shared by every request that
+ * presents the same {@code kid}. Each verifier keeps the JCA signatures it has initialised with the key and
+ * reuses them, so the key is not set up again for every assertion.</p>
+ */
+public final class VerificationKey {
+
+    private final String kid;
+    private final PublicKey publicKey;
+    private final Map<SignatureAlgorithm, Verifier> verifiers = new EnumMap<>(SignatureAlgorithm.class);
+
+    public VerificationKey(String kid, PublicKey publicKey) {
+        this(kid, publicKey, null);
+    }
+
+    /**
+     * @param algorithm The only algorithm the key may be used with, as given by the JWK {@code alg} member, or
+     *                  {@code null} to allow every algorithm that supports the key type.
+     */
+    public VerificationKey(String kid, PublicKey publicKey, SignatureAlgorithm algorithm) {
+        this.kid = kid;
+        this.publicKey = publicKey;
+        for (SignatureAlgorithm candidate : SignatureAlgorithm.values()) {
+            if ((algorithm == null || algorithm == candidate) && candidate.supports(publicKey)) {
+                verifiers.put(candidate, new Verifier(candidate));
+            }
+        }
+    }
+
+    public String getKid() {
+        return kid;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Whether the key may be used to verify signatures made with the given algorithm.
+     */
+    public boolean supports(SignatureAlgorithm algorithm) {
+        return verifiers.containsKey(algorithm);
+    }
+
+    /**
+     * Verifies a signature.
+     *
+     * @return {@code false} if the signature is invalid or malformed, or the key does not support the algorithm.
+     */
+    public boolean verify(SignatureAlgorithm algorithm, byte[] signedData, byte[] signature) {
+        Verifier verifier = verifiers.get(algorithm);
+        return verifier != null && verifier.verify(signedData, signature);
+    }
+
+    /**
+     * A pool of signatures initialised for verification with the key. A signature goes back to the pool after a
+     * completed verification, which leaves it ready for the next one.
+     */
+    private final class Verifier {
+        private final SignatureAlgorithm algorithm;
+        private final Queue<Signature> idle = new ConcurrentLinkedQueue<>();
+
+        private Verifier(SignatureAlgorithm algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        private boolean verify(byte[] signedData, byte[] signature) {
+            try {
+                Signature verifier = idle.poll();
+                if (verifier == null) {
+                    verifier = algorithm.newSignature();
+                    verifier.initVerify(publicKey);
+                }
+                verifier.update(signedData);
+                boolean valid = verifier.verify(signature);
+                idle.offer(verifier);
+                return valid;
+            } catch (SignatureException e) {
+                return false;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot verify " + algorithm + " signatures", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the keys used to verify client assertions, parsed once and indexed by {@code kid}.
+ *
+ * <p>Without configuration the store holds the built-in key under {@link #DEFAULT_KID} and verifies every
+ * assertion with it, whatever {@code kid} the assertion names. When
+ * {@code accesstoken.jwks.uri} is set (a file path, {@code file:} URI or http(s) URL of a JWKS document) the
+ * keys are loaded from there and reloaded every {@code accesstoken.jwks.refreshSeconds} (default 300) on a
+ * background thread. A reload builds a complete new index and swaps it in atomically; a failed reload keeps
+ * the previous keys.</p>
+ *
+ * <p>The JWKS may hold RSA keys, EC keys on P-256 and OKP keys on Ed25519. A key with an {@code alg} member is
+ * only used with that algorithm; keys of other types or curves, or with an algorithm {@link SignatureAlgorithm}
+ * does not accept, are skipped, as are keys that cannot be read and keys sharing a {@code kid}.</p>
+ *
+ * <p>The store only finds a key by {@code kid}; {@code ClientAssertionValidatorNode} then checks that the key
+ * belongs to the client the assertion is for.</p>
+ */
+@Singleton
+public class VerificationKeyStore {
+
+    public static final String DEFAULT_KID = "default";
+
+    private static final String PREFIX = "accesstoken.jwks.";
+    private static final String EMBEDDED_KEY = "MIICIjANBgkqhkiG9w0BAQEFAAOCAg8AMIICCgKCAgEAufecY+YT179E9ZJ5NcDN"
+            + "lvYZHZrDT+Xq/5fM5IGEJSME1DrJJ67j8PR7hUQ9ab7TiiVNzWhPDgPbmP0fD/Ao"
+            + "haRTdlfayg+lCeXDu0oYTLwBtqrn+aBN+Oi57UsjLUi05j+j62fJfP6D9+dbZSHi"
+            + "iNvc/0ETnG98IA2r8QFEM5qN3pprwOiVWa5nOb9BKvUix9HosDD3nGXpX18+/rtS"
+            + "DmIOUF7O0Rgm/XCLr6zeB4IIdnMyLJMfaW4HyarEdaAeXIn1NfWOMGSZMquv4xsa"
+            + "727F7Vd8eyf6WxD67hiPLh/G3nWPPbDAEGxynim6CYHFWtcg7o9AzuF8PCsas4OK"
+            + "+dE3lAQymvXqm+PS9wD0A3/KD/UZONLfjWUg6Rb2dVBbirl/2hI2QnSv9yAbXlmg"
+            + "z1fupElQNYAppjtK8ahU9Jvcupt7HIY1XYjc/XQhFU3cmZu7wAkZQd/8QFJntUT4"
+            + "M9MuhNx/rq0cdACDyg8hl6nR5Ghoq0ExqfE6PrTl1ty7oegLjBzMYI4zQyv4nVRW"
+            + "FqZUyCwLzeYFf8tkFhigOTogzklPPtKcyFxUYv/ScORl7n5yH/EkZsk1rK1xltu3"
+            + "mwEmIQU3uelH8MUvhBFbrv9ejhDNrWkkSolIOkZShAvMPwW8ILvBy1DL9WghtMKE"
+            + "noDBF0EDvzvoZMiD0r4KNLMCAwEAAQ==";
+
+    /** The X.509 SubjectPublicKeyInfo header of an Ed25519 key, followed by the raw 32 byte key. */
+    private static final byte[] ED25519_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21,
+        0x00};
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpConnection httpConnection;
+    private final AtomicReference<Map<String, VerificationKey>> keys = new AtomicReference<>();
+    /** The built-in key, once loaded; compared by identity with {@link #keys} to tell whether it is in use. */
+    private volatile Map<String, VerificationKey> embeddedKeys;
+    private ScheduledExecutorService scheduler;
+    private boolean started;
+
+    @Inject
+    public VerificationKeyStore(HttpConnection httpConnection) {
+        this.httpConnection = httpConnection;
+    }
+
+    /**
+     * Loads the keys and, when a JWKS source is configured, schedules the background refresh.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        refresh();
+        String source = System.getProperty(PREFIX + "uri");
+        if (source != null && !source.isEmpty()) {
+            long period = Long.getLong(PREFIX + "refreshSeconds", 300);
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "access-token-jwks-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        started = false;
+    }
+
+    /**
+     * Returns the key for the given {@code kid}. While the store holds the built-in key the {@code kid} is
+     * ignored. For keys loaded from a JWKS a missing {@code kid} resolves to the only key in the store, or to the
+     * {@link #DEFAULT_KID} key, and any other {@code kid} must match.
+     *
+     * @return the key, or {@code null} if the store has no matching key.
+     */
+    public VerificationKey get(String kid) {
+        Map<String, VerificationKey> current = keys.get();
+        if (current == null) {
+            start();
+            current = keys.get();
+        }
+        if (current == embeddedKeys) {
+            return current.get(DEFAULT_KID);
+        }
+        if (kid == null) {
+            if (current.size() == 1) {
+                return current.values().iterator().next();
+            }
+            kid = DEFAULT_KID;
+        }
+        return current.get(kid);
+    }
+
+    /**
+     * Returns {@code true} if the key is the built-in key, which is not tied to any client.
+     */
+    public boolean isBuiltIn(VerificationKey key) {
+        Map<String, VerificationKey> embedded = embeddedKeys;
+        return embedded != null && embedded.get(DEFAULT_KID) == key;
+    }
+
+    /**
+     * Returns every key currently in the store.
+     */
+    public Collection<VerificationKey> keys() {
+        Map<String, VerificationKey> current = keys.get();
+        if (current == null) {
+            start();
+            current = keys.get();
+        }
+        return current.values();
+    }
+
+    /**
+     * Reloads the keys from the configured source and swaps them in. Errors are logged and the current keys
+     * kept.
+     */
+    public void refresh() {
+        String source = System.getProperty(PREFIX + "uri");
+        try {
+            Map<String, VerificationKey> loaded;
+            if (source == null || source.isEmpty()) {
+                loaded = embeddedKeys;
+                if (loaded == null) {
+                    loaded = Collections.singletonMap(DEFAULT_KID,
+                            new VerificationKey(DEFAULT_KID, stringToRSAKey(EMBEDDED_KEY)));
+                    embeddedKeys = loaded;
+                }
+            } else {
+                loaded = parseJwks(read(source));
+            }
+            keys.set(loaded);
+            logger.info("Loaded {} verification keys", loaded.size());
+        } catch (Exception e) {
+            logger.error("Failed to load verification keys from {}", source, e);
+            if (keys.get() == null) {
+                keys.set(Collections.emptyMap());
+            }
+        }
+    }
+
+    public static PublicKey stringToRSAKey(String publicKeyB64) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        byte[] byteKey = Base64.getDecoder().decode(publicKeyB64);
+        X509EncodedKeySpec x509PublicKey = new X509EncodedKeySpec(byteKey);
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        return kf.generatePublic(x509PublicKey);
+    }
+
+    /**
+     * Indexes the signing keys of a JWKS document by {@code kid}. A key that cannot be read is logged and
+     * skipped, and so is every key of a {@code kid} that more than one key uses, keys without a {@code kid}
+     * included, since an assertion naming it could not be told which key to verify with.
+     */
+    Map<String, VerificationKey> parseJwks(String jwks) throws JSONException {
+        JSONArray array = new JSONObject(jwks).getJSONArray("keys");
+        Map<String, VerificationKey> parsed = new HashMap<>();
+        Set<String> duplicates = new HashSet<>();
+        for (int i = 0; i < array.length(); i++) {
+            try {
+                JSONObject jwk = array.getJSONObject(i);
+                if ("enc".equals(jwk.optString("use"))) {
+                    continue;
+                }
+                String alg = jwk.optString("alg", null);
+                SignatureAlgorithm algorithm = SignatureAlgorithm.fromName(alg);
+                PublicKey publicKey = toPublicKey(jwk);
+                if (publicKey == null || alg != null && (algorithm == null || !algorithm.supports(publicKey))) {
+                    continue;
+                }
+                String kid = jwk.optString("kid", DEFAULT_KID);
+                if (parsed.putIfAbsent(kid, new VerificationKey(kid, publicKey, algorithm)) != null) {
+                    duplicates.add(kid);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                logger.warn("Skipping JWKS key {}: {}", i, e.getMessage());
+            }
+        }
+        for (String kid : duplicates) {
+            logger.error("Skipping the JWKS keys with kid {}, more than one key uses it", kid);
+            parsed.remove(kid);
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Builds the public key of a JWK.
+     *
+     * @return the key, or {@code null} for a key type or curve that is not supported.
+     */
+    private static PublicKey toPublicKey(JSONObject jwk) throws JSONException, GeneralSecurityException {
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        String kty = jwk.optString("kty");
+        String crv = jwk.optString("crv", null);
+        if ("RSA".equals(kty)) {
+            BigInteger modulus = new BigInteger(1, decoder.decode(jwk.getString("n")));
+            BigInteger exponent = new BigInteger(1, decoder.decode(jwk.getString("e")));
+            return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        }
+        if ("EC".equals(kty) && "P-256".equals(crv)) {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec("secp256r1"));
+            ECPoint point = new ECPoint(new BigInteger(1, decoder.decode(jwk.getString("x"))),
+                    new BigInteger(1, decoder.decode(jwk.getString("y"))));
+            return KeyFactory.getInstance("EC").generatePublic(
+                    new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+        }
+        if ("OKP".equals(kty) && "Ed25519".equals(crv)) {
+            byte[] x = decoder.decode(jwk.getString("x"));
+            if (x.length != 32) {
+                throw new InvalidKeySpecException("Ed25519 keys are 32 bytes");
+            }
+            byte[] encoded = new byte[ED25519_PREFIX.length + x.length];
+            System.arraycopy(ED25519_PREFIX, 0, encoded, 0, ED25519_PREFIX.length);
+            System.arraycopy(x, 0, encoded, ED25519_PREFIX.length, x.length);
+            return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(encoded));
+        }
+        return null;
+    }
+
+    private String read(String source) throws IOException, InterruptedException {
+        if (source.startsWith("http://") || source.startsWith("https://")) {
+            URI uri = URI.create(source);
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(HttpConnection.requestTimeout(uri))
+                    .GET()
+                    .build();
+            HttpResponse<String> response = httpConnection.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("JWKS request returned " + response.statusCode());
+            }
+            return response.body();
+        }
+        return new String(Files.readAllBytes(source.startsWith("file:") ? Paths.get(URI.create(source))
+                : Paths.get(source)), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,209 @@
+package org.forgerock.openam.auth.Utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms the login path up when AM starts, so the first logins after a restart or scale-out do not pay for cold
+ * code and missing connections.
+ *
+ * <p>The warm-up opens {@code accesstoken.warmup.connections} (default 2) connections to each URL listed in
+ * {@code accesstoken.warmup.urls}, typically the IDM and token endpoints the nodes are configured with, through
+ * the pooled clients, which keep them alive afterwards. Meanwhile it runs the verifiers of every loaded
+ * verification key, and parses and verifies synthetic client assertions and consent responses
+ * {@code accesstoken.warmup.iterations} (default 2000) times each, so the JIT compiles those paths. It never
+ * fails startup, but it does delay it: the plugin runs it before registering the nodes, so AM's startup waits
+ * for it for up to {@code accesstoken.warmup.maxMillis} (default 2000), after which it stops whatever it has
+ * reached. Set {@code accesstoken.warmup.enabled} to {@code false} to skip it.</p>
+ */
+@Singleton
+public class WarmUp {
+
+    private static final String PREFIX = "accesstoken.warmup.";
+    private static final String CLIENT_ID = "warm-up";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final byte[] CONSENT_RESPONSE = ("{\"ClientDetails\":[{\"_id\":\"warm-up\",\"ClientId\":\"warm-up\","
+            + "\"status\":\"active\",\"consentExpiryDateTime\":\"2099-01-01T00:00:00Z\"}]}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final HttpConnection httpConnection;
+    private final VerificationKeyStore keyStore;
+
+    @Inject
+    public WarmUp(HttpConnection httpConnection, VerificationKeyStore keyStore) {
+        this.httpConnection = httpConnection;
+        this.keyStore = keyStore;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(PREFIX + "enabled", "true"));
+    }
+
+    /**
+     * Runs the warm-up and logs what it did. Called from the plugin before the nodes are registered.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(Long.getLong(PREFIX + "maxMillis", 2000));
+        int iterations = Integer.getInteger(PREFIX + "iterations", 2000);
+        List<CompletableFuture<?>> connections = connect();
+        int keys = 0;
+        int assertions = 0;
+        int consents = 0;
+        try {
+            keys = verifyKeys(deadline);
+            assertions = verifyAssertions(iterations, deadline);
+            consents = parseConsents(iterations, deadline);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            logger.warn("Warm-up stopped early: {}", e.toString());
+        }
+        int connected = await(connections, deadline);
+        logger.info("Warm-up finished in {} ms: {} verification keys, {} assertions, {} consent responses, "
+                + "{} of {} connections", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), keys,
+                assertions, consents, connected, connections.size());
+    }
+
+    /**
+     * Opens the configured connections. The requests are plain GETs sent straight through the pooled clients,
+     * without the endpoint guards or call statistics, and their responses are discarded.
+     */
+    private List<CompletableFuture<?>> connect() {
+        List<CompletableFuture<?>> connections = new ArrayList<>();
+        int perUrl = Integer.getInteger(PREFIX + "connections", 2);
+        for (String url : System.getProperty(PREFIX + "urls", "").split(",")) {
+            if (url.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                HttpRequest request = HttpConnection.getRequest(url.trim());
+                for (int i = 0; i < perUrl; i++) {
+                    connections.add(httpConnection.client(request.uri())
+                            .sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+                }
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring invalid warm-up URL {}", url);
+            }
+        }
+        return connections;
+    }
+
+    private int await(List<CompletableFuture<?>> connections, long deadline) {
+        int connected = 0;
+        for (CompletableFuture<?> connection : connections) {
+            try {
+                connection.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                connected++;
+            } catch (ExecutionException | TimeoutException e) {
+                logger.debug("Warm-up connection failed: {}", e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Runs each loaded key's verifiers once against a random signature, which sets up their JCA signatures.
+     */
+    private int verifyKeys(long deadline) {
+        byte[] data = CLIENT_ID.getBytes(StandardCharsets.US_ASCII);
+        int keys = 0;
+        for (VerificationKey key : keyStore.keys()) {
+            for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+                if (key.supports(algorithm)) {
+                    byte[] signature = new byte[algorithm == SignatureAlgorithm.ES256
+                            || algorithm == SignatureAlgorithm.EdDSA ? 64 : 512];
+                    ThreadLocalRandom.current().nextBytes(signature);
+                    key.verify(algorithm, data, signature);
+                }
+            }
+            keys++;
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Signs one synthetic assertion per algorithm the loaded keys use, then parses and verifies them in turn.
+     */
+    private int verifyAssertions(int iterations, long deadline) throws GeneralSecurityException {
+        Map<SignatureAlgorithm, VerificationKey> keys = new EnumMap<>(SignatureAlgorithm.class);
+        Map<SignatureAlgorithm, String> tokens = new EnumMap<>(SignatureAlgorithm.class);
+        for (VerificationKey key : keyStore.keys()) {
+            for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+                if (key.supports(algorithm) && !keys.containsKey(algorithm)) {
+                    KeyPair keyPair = algorithm.generateKeyPair();
+                    keys.put(algorithm, new VerificationKey(CLIENT_ID, keyPair.getPublic(), algorithm));
+                    tokens.put(algorithm, sign(algorithm, keyPair.getPrivate()));
+                }
+            }
+        }
+        int done = 0;
+        while (done < iterations && !tokens.isEmpty() && System.nanoTime() < deadline) {
+            for (Map.Entry<SignatureAlgorithm, String> token : tokens.entrySet()) {
+                ParsedJwt jwt = ParsedJwt.parse(token.getValue());
+                SignatureAlgorithm algorithm = SignatureAlgorithm.fromName(jwt.getAlgorithm());
+                if (!keys.get(token.getKey()).verify(algorithm, jwt.getSigningInput(), jwt.getSignature())) {
+                    throw new IllegalStateException("Synthetic " + algorithm + " assertion did not verify");
+                }
+                jwt.getHash();
+            }
+            done++;
+        }
+        return done;
+    }
+
+    /**
+     * Signs a client assertion shaped like the ones clients send, for a throwaway key of the given algorithm.
+     */
+    private static String sign(SignatureAlgorithm algorithm, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        String header = "{\"alg\":\"" + algorithm + "\",\"typ\":\"JWT\",\"kid\":\"" + CLIENT_ID + "\"}";
+        String claims = "{\"iss\":\"" + CLIENT_ID + "\",\"sub\":\"" + CLIENT_ID + "\",\"jti\":\""
+                + UUID.randomUUID() + "\",\"exp\":" + (System.currentTimeMillis() / 1000 + 3600) + "}";
+        String signingInput = ENCODER.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + ENCODER.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+        Signature signature = algorithm.newSignature();
+        signature.initSign(privateKey);
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return signingInput + "." + ENCODER.encodeToString(signature.sign());
+    }
+
+    private int parseConsents(int iterations, long deadline) throws IOException {
+        int done = 0;
+        while (done < iterations && System.nanoTime() < deadline) {
+            ConsentLookup.parse(CLIENT_ID, new ByteArrayInputStream(CONSENT_RESPONSE));
+            ClientConsentLookup.parse(200, CLIENT_ID, new ByteArrayInputStream(CONSENT_RESPONSE));
+            done++;
+        }
+        return done;
+    }
+}
@@ -26,18 +26,23 @@ package org.forgerock.openam.auth.nodes;
 import com.google.inject.assistedinject.Assisted;
 
 import org.forgerock.json.JsonValue;
-import org.forgerock.json.jose.jws.JwsAlgorithm;
-import org.forgerock.json.jose.jws.SignedJwt;
-import org.forgerock.json.jose.jws.handlers.RSASigningHandler;
 import org.forgerock.json.schema.validator.Constants;
 import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
+import org.forgerock.openam.auth.Utility.ParsedJwt;
+import org.forgerock.openam.auth.Utility.ReplayGuard;
+import org.forgerock.openam.auth.Utility.SignatureAlgorithm;
+import org.forgerock.openam.auth.Utility.TimeSource;
+import org.forgerock.openam.auth.Utility.VerificationKey;
+import org.forgerock.openam.auth.Utility.VerificationKeyStore;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.forgerock.json.jose.common.*;
 
 import javax.inject.Inject;
 import javax.security.auth.callback.NameCallback;
@@ -54,27 +59,26 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.security.GeneralSecurityException;
-import java.security.Key;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 //import org.forgerock.guava.common.base.Strings;
 import com.google.common.base.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 
 /**
  * A node which validates the incoming JWT
@@ -96,141 +100,219 @@ public class ClientAssertionValidatorNode extends AbstractDecisionNode {
 		default String prompt() {
 			return "Prompt";
 		}
+
+		@Attribute(order = 300)
+		default boolean replayProtection() {
+			return false;
+		}
+
+		@Attribute(order = 400)
+		default Set<String> allowedAlgorithms() {
+			Set<String> algorithms = new LinkedHashSet<>();
+			for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+				algorithms.add(algorithm.name());
+			}
+			return algorithms;
+		}
+
+		@Attribute(order = 500)
+		default Map<String, String> clientAlgorithms() {
+			return Collections.emptyMap();
+		}
+
+		@Attribute(order = 600)
+		default Map<String, String> clientKeys() {
+			return Collections.emptyMap();
+		}
 	}
 
 	private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ClientAssertionValidatorNode";
 	private final Logger logger = LoggerFactory.getLogger("amAuth");
 
 	private final ClientAssertionValidatorNode.Config config;
+	private final VerificationKeyStore keyStore;
+	private final ReplayGuard replayGuard;
+	private final NodeStats stats;
+	private final AuditLog auditLog;
+	private final TimeSource clock;
+	private final Set<SignatureAlgorithm> allowedAlgorithms;
+	private final Map<String, Set<SignatureAlgorithm>> clientAlgorithms = new HashMap<>();
+	private final Map<String, Set<String>> clientKeys = new HashMap<>();
 
 	/**
 	 * Constructs a new SetSessionPropertiesNode instance.
 	 * 
 	 * @param config Node configuration.
+	 * @param keyStore The store holding the parsed verification keys.
+	 * @param replayGuard Tracks used and invalid assertions.
+	 * @param nodeMetrics Records the node's latency and outcomes.
+	 * @param auditLog Receives the node's audit events.
+	 * @param clock The time the assertion expiry is checked against.
 	 */
 	@Inject
-	public ClientAssertionValidatorNode(@Assisted ClientAssertionValidatorNode.Config config) {
+	public ClientAssertionValidatorNode(@Assisted ClientAssertionValidatorNode.Config config,
+			VerificationKeyStore keyStore, ReplayGuard replayGuard, NodeMetrics nodeMetrics,
+			AuditLog auditLog, TimeSource clock) {
 		this.config = config;
+		this.keyStore = keyStore;
+		this.replayGuard = replayGuard;
+		this.stats = nodeMetrics.node("ClientAssertionValidatorNode");
+		this.auditLog = auditLog;
+		this.clock = clock;
+		this.allowedAlgorithms = algorithms(config.allowedAlgorithms());
+		config.clientAlgorithms().forEach((client, algorithms) ->
+				clientAlgorithms.put(client, algorithms(Arrays.asList(algorithms.split(",")))));
+		config.clientKeys().forEach((client, kids) -> clientKeys.put(client,
+				Arrays.stream(kids.split(",")).map(String::trim).collect(Collectors.toSet())));
 	}
 
-	private SignedJwt getSignedJwt(String sJWT) throws Exception{ 
-    	logger.info("start of getsignedJwt");
-    	SignedJwt signedJWT = null;
-    	try { 
-    		JwtReconstruction jwtReconstruction = new JwtReconstruction(); 
-    		signedJWT = jwtReconstruction.reconstructJwt(sJWT, SignedJwt.class); 
-    		logger.info("end of getsignedJwt ::::" + signedJWT); 
-    	} catch (Exception ex) { 
-    		logger.info("Exception in getsigned wt: "+ ex);
-    		throw new Exception("Could not reconstruct JWT");
-    	}
-    	logger.info("end of getSignedJWT:::: " + signedJWT);
-    	return signedJWT;
-    }
-    
-    private boolean verifyJWSs(Key publicKey, String signedJWTs, JwsAlgorithm alg) {
+	private Set<SignatureAlgorithm> algorithms(Iterable<String> names) {
+		Set<SignatureAlgorithm> algorithms = EnumSet.noneOf(SignatureAlgorithm.class);
+		for (String name : names) {
+			SignatureAlgorithm algorithm = SignatureAlgorithm.fromName(name.trim());
+			if (algorithm == null) {
+				logger.warn("Ignoring unsupported client assertion algorithm {}", name);
+			} else {
+				algorithms.add(algorithm);
+			}
+		}
+		return algorithms;
+	}
+
+	/**
+	 * The algorithms the client may sign its assertions with.
+	 */
+	Set<SignatureAlgorithm> allowedAlgorithms(String clientId) {
+		return clientAlgorithms.getOrDefault(clientId, allowedAlgorithms);
+	}
+
+	/**
+	 * Whether the client may sign with the key. The built-in key is shared by every client; a key loaded from a
+	 * JWKS belongs to the client its {@code kid} names, and to the clients it is listed for in the client keys,
+	 * where {@code *} lists the keys every client may use.
+	 */
+	boolean keyBelongsTo(VerificationKey key, String clientId) {
+		if (keyStore.isBuiltIn(key) || key.getKid().equals(clientId)) {
+			return true;
+		}
+		Set<String> kids = clientKeys.get(clientId);
+		Set<String> shared = clientKeys.get("*");
+		return (kids != null && kids.contains(key.getKid())) || (shared != null && shared.contains(key.getKid()));
+	}
+
+    boolean verifyJWSs(VerificationKey key, ParsedJwt jwt, SignatureAlgorithm alg) {
     	logger.info("Start of Verify JWSs");
-    	String signedData = signedJWTs.substring(0, signedJWTs.lastIndexOf("."));
-    	String signatureB64u = signedJWTs.substring(signedJWTs.lastIndexOf(".") + 1, signedJWTs.length());
-    	byte[] signature = Base64.getUrlDecoder().decode(signatureB64u);
-    	RSASigningHandler rsaSigningHandler = new RSASigningHandler(publicKey);
+    	boolean valid = key.verify(alg, jwt.getSigningInput(), jwt.getSignature());
     	logger.info("end of verify JWSs");
-    	return rsaSigningHandler.verify(alg, signedData.getBytes(), signature);
-    }
-    
-    public PublicKey stringToRSAKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
-        String publicKeyB64 = "MIICIjANBgkqhkiG9w0BAQEFAAOCAg8AMIICCgKCAgEAufecY+YT179E9ZJ5NcDN"
-        		+ "lvYZHZrDT+Xq/5fM5IGEJSME1DrJJ67j8PR7hUQ9ab7TiiVNzWhPDgPbmP0fD/Ao"
-        		+ "haRTdlfayg+lCeXDu0oYTLwBtqrn+aBN+Oi57UsjLUi05j+j62fJfP6D9+dbZSHi"
-        		+ "iNvc/0ETnG98IA2r8QFEM5qN3pprwOiVWa5nOb9BKvUix9HosDD3nGXpX18+/rtS"
-        		+ "DmIOUF7O0Rgm/XCLr6zeB4IIdnMyLJMfaW4HyarEdaAeXIn1NfWOMGSZMquv4xsa"
-        		+ "727F7Vd8eyf6WxD67hiPLh/G3nWPPbDAEGxynim6CYHFWtcg7o9AzuF8PCsas4OK"
-        		+ "+dE3lAQymvXqm+PS9wD0A3/KD/UZONLfjWUg6Rb2dVBbirl/2hI2QnSv9yAbXlmg"
-        		+ "z1fupElQNYAppjtK8ahU9Jvcupt7HIY1XYjc/XQhFU3cmZu7wAkZQd/8QFJntUT4"
-        		+ "M9MuhNx/rq0cdACDyg8hl6nR5Ghoq0ExqfE6PrTl1ty7oegLjBzMYI4zQyv4nVRW"
-        		+ "FqZUyCwLzeYFf8tkFhigOTogzklPPtKcyFxUYv/ScORl7n5yH/EkZsk1rK1xltu3"
-        		+ "mwEmIQU3uelH8MUvhBFbrv9ejhDNrWkkSolIOkZShAvMPwW8ILvBy1DL9WghtMKE"
-        		+ "noDBF0EDvzvoZMiD0r4KNLMCAwEAAQ==";
-        
-        
-        
-        
-            byte[] byteKey = Base64.getDecoder().decode(publicKeyB64.getBytes());
-	
-            X509EncodedKeySpec X509publicKey = new X509EncodedKeySpec(byteKey);
-            KeyFactory kf = KeyFactory.getInstance("RSA");
-            return kf.generatePublic(X509publicKey);
-        
+    	return valid;
     }
     
-    public boolean verifyJWTExpiry(SignedJwt signedJWTs) throws GeneralSecurityException{
+    public boolean verifyJWTExpiry(ParsedJwt jwt) throws GeneralSecurityException{
     	logger.info("Start of verifyJWTExpiry");
-    	Date jwtExp =   (Date) (signedJWTs.getClaimsSet().getClaim("exp")); 
-    	
-        long secsFromEpoch = LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant().getEpochSecond();
-        LocalDateTime ldt = LocalDateTime.ofInstant(jwtExp.toInstant(),
-                ZoneId.systemDefault());
-        long jwtExpsecs = ldt.atZone(ZoneId.systemDefault()).toInstant().getEpochSecond();
-        
+        boolean valid = jwt.getExpirySeconds() > clock.currentTimeSeconds();
         logger.info("End of verifyJWTExpiry");
-    	return jwtExpsecs>secsFromEpoch;
+    	return valid;
     }
 
     @SuppressWarnings("deprecation")
 	@Override
 	public Action process(TreeContext context) 
 	{
-		String token = context.request.headers.get("authorization").get(0).substring(7);
+		long start = System.nanoTime();
 		String authorization_code = context.request.headers.get("code").get(0);
+		String clientId = null;
 
-		logger.info("Authorization Code: "+authorization_code);
-
-		JsonValue sharedState = context.sharedState;
-		sharedState.put("authorizationCode", authorization_code);
+		// The code is only needed by the Generate Access Token Node, so it stays out of shared state
+		JsonValue transientState = context.transientState;
+		transientState.put("authorizationCode", authorization_code);
 
-		// Create Public key
-			PublicKey publicKey;
 			try{
-				publicKey = this.stringToRSAKey();
-				logger.info("Public Key: "+publicKey);
+				ParsedJwt jwt = ParsedJwt.fromContext(context);
+				clientId = jwt.getSubject();
+
+				// Turn away assertions that recently failed verification
+				if (config.replayProtection() && replayGuard.isKnownInvalid(jwt.getHash())) {
+					logger.info("JWT Signature is known to be invalid");
+					return finish(start, "signature_known_invalid", clientId, authorization_code, goTo(false).build());
+				}
+
+				// Only accept the algorithms allowed for the client
+				SignatureAlgorithm algorithm = SignatureAlgorithm.fromName(jwt.getAlgorithm());
+				if (algorithm == null || !allowedAlgorithms(clientId).contains(algorithm)) {
+					logger.info("JWT algorithm {} is not allowed", jwt.getAlgorithm());
+					return finish(start, "algorithm_not_allowed", clientId, authorization_code, goTo(false).build());
+				}
+
+				// Look up the parsed public key
+				VerificationKey key = keyStore.get(jwt.getKeyId());
+				if (key == null) {
+					logger.info("No verification key found for the JWT");
+					return finish(start, "key_not_found", clientId, authorization_code, goTo(false).build());
+				}
+				if (!keyBelongsTo(key, clientId)) {
+					logger.info("Verification key {} does not belong to client {}", key.getKid(), clientId);
+					return finish(start, "key_not_bound", clientId, authorization_code, goTo(false).build());
+				}
+				if (!key.supports(algorithm)) {
+					logger.info("Verification key {} cannot be used with {}", key.getKid(), algorithm);
+					return finish(start, "key_algorithm_mismatch", clientId, authorization_code,
+							goTo(false).build());
+				}
+				logger.debug("Verification Key: {}", key.getKid());
 				
 				
 				//JWT Signature Validation
 				
-		    		Boolean validJWTSignature = this.verifyJWSs(publicKey, token, JwsAlgorithm.RS256);
+		    		Boolean validJWTSignature = this.verifyJWSs(key, jwt, algorithm);
 		    		if (validJWTSignature)
 		    		logger.info("JWT Signature is valid");
 		    		else {
 						logger.info("JWT Signature is invalid");
-		    			return goTo(false).build();    			
+						if (config.replayProtection()) {
+							replayGuard.recordInvalid(jwt.getHash());
+						}
+		    			return finish(start, "signature_invalid", clientId, authorization_code, goTo(false).build());    			
 		    		}
 		    		
 				 
 				
 				//verify expiry
-				SignedJwt signedJwt = null;
-				
-					signedJwt = getSignedJwt(token);
-					Boolean validExp = verifyJWTExpiry(signedJwt);
+					Boolean validExp = verifyJWTExpiry(jwt);
 		    		if (validExp)
 		    		logger.info("JWT is not expired");
 		    		else {
 						logger.info("JWT Signature is expired");
-						return goTo(false).build();    			
+						return finish(start, "expired", clientId, authorization_code, goTo(false).build());    			
 		    		}
-			}
-			catch(InvalidKeySpecException | NoSuchAlgorithmException e){
-				logger.error("Failed to read Public Key", e.getMessage());
-				return goTo(false).build(); 
+
+				//reject replayed assertions
+				if (config.replayProtection()) {
+					String jti = jwt.getJwtId();
+					String replayId = jti == null ? jwt.getHash() : jwt.getSubject() + "|" + jti;
+					ReplayGuard.Result result = replayGuard.markUsed(replayId,
+							TimeUnit.SECONDS.toMillis(jwt.getExpirySeconds()));
+					if (result != ReplayGuard.Result.ACCEPTED) {
+						logger.info("JWT rejected by replay protection: {}", result);
+						String reason = result == ReplayGuard.Result.REPLAYED ? "replayed" : "replay_capacity";
+						return finish(start, reason, clientId, authorization_code, goTo(false).build());
+					}
+				}
 			}
 			catch(GeneralSecurityException e){
 				logger.error("JWT is expired", e.getMessage());
 			}
 			catch (Exception e) { 
 				logger.error("JWT Signature is invalid",e.getMessage());
-				return goTo(false).build();    			
+				return finish(start, "invalid_assertion", clientId, authorization_code, goTo(false).build());    			
 		    }
-		return goTo(true).replaceSharedState(sharedState).build();
+		return finish(start, "ok", clientId, authorization_code,
+				goTo(true).replaceTransientState(transientState).build());
+
+	}
 
+	private Action finish(long start, String reason, String clientId, String code, Action action) {
+		auditLog.record(AuditLog.Type.CLIENT_ASSERTION, "true".equals(action.outcome), reason, clientId, null, code,
+				System.nanoTime() - start);
+		return stats.record(start, reason, action);
 	}
 }
\ No newline at end of file
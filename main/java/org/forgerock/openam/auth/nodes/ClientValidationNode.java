@@ -1,26 +1,28 @@
 
 package org.forgerock.openam.auth.nodes;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
-import java.util.Base64;
 
 import javax.inject.Inject;
 
 
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.Exception.ClientNotFoundException;
-import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Exception.EndpointUnavailableException;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ClientCache;
+import org.forgerock.openam.auth.Utility.ClientConsentLookup;
+import org.forgerock.openam.auth.Utility.ClientLookup;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentLookup;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
+import org.forgerock.openam.auth.Utility.ParsedJwt;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.forgerock.json.JsonValue;
@@ -55,71 +57,175 @@ public class ClientValidationNode extends AbstractDecisionNode {
 		{
 			return "http://localhost:8080/openidm/endpoint/softwareStatement?clientName=";
 		}
+		@Attribute(order = 400)
+		default int cacheTtlSeconds() {
+			return 300;
+		}
+		@Attribute(order = 500)
+		default int negativeCacheTtlSeconds() {
+			return 30;
+		}
+		@Attribute(order = 600)
+		default boolean prefetchConsent() {
+			return false;
+		}
+		@Attribute(order = 700)
+		default String consentUrlValue()
+		{
+			return "http://localhost:8080/openidm/endpoint/consent?clientId=";
+		}
+		@Attribute(order = 800)
+		default boolean resolveConsent() {
+			return false;
+		}
+		@Attribute(order = 900)
+		default String resolutionUrlValue()
+		{
+			return "http://localhost:8080/openidm/endpoint/clientConsent?clientId=";
+		}
 	}
 
 	private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ClientValidationNode";
 	private final Logger logger = LoggerFactory.getLogger("amAuth");
 
 	private final ClientValidationNode.Config config;
+	private final ClientLookup clientLookup;
+	private final ClientCache clientCache;
+	private final ConsentCache consentCache;
+	private final ConsentLookup consentLookup;
+	private final ClientConsentLookup clientConsentLookup;
+	private final NodeStats stats;
+	private final AuditLog auditLog;
 
 	/**
 	 * Constructs a new SetSessionPropertiesNode instance.
 	 * 
 	 * @param config Node configuration.
+	 * @param clientLookup Looks clients up in IDM.
+	 * @param clientCache The cache of client lookups.
+	 * @param consentCache The consent cache, used to prefetch the client's consent.
+	 * @param consentLookup Loads consents from IDM.
+	 * @param clientConsentLookup Resolves the client and its consent in one request.
+	 * @param nodeMetrics Records the node's latency and outcomes.
+	 * @param auditLog Receives the node's audit events.
 	 */
 	@Inject
-	public ClientValidationNode(@Assisted ClientValidationNode.Config config) {
+	public ClientValidationNode(@Assisted ClientValidationNode.Config config, ClientLookup clientLookup,
+			ClientCache clientCache, ConsentCache consentCache, ConsentLookup consentLookup,
+			ClientConsentLookup clientConsentLookup, NodeMetrics nodeMetrics, AuditLog auditLog) {
 		this.config = config;
+		this.clientLookup = clientLookup;
+		this.clientCache = clientCache;
+		this.consentCache = consentCache;
+		this.consentLookup = consentLookup;
+		this.clientConsentLookup = clientConsentLookup;
+		this.stats = nodeMetrics.node("ClientValidationNode");
+		this.auditLog = auditLog;
 	}
-
-    private HttpClient httpClient;
-
-    public void setHttpClient(HttpClient httpClient) {
-        this.httpClient = httpClient;
-    }
 	
 	@SuppressWarnings("deprecation")
 	@Override
 	public Action process(TreeContext context) 
 	{
+		long start = System.nanoTime();
 		logger.info("Client Validation Node");
         
-		String jwtToken = context.request.headers.get("authorization").get(0).substring(7);
-		String[] parts = jwtToken.split("\\.");
-		JSONObject payload;
 		JsonValue sharedState = context.sharedState;
+		boolean sharedStateChanged = false;
+		String sub = null;
 		try 
 		{
-			payload = new JSONObject(new String(Base64.getUrlDecoder().decode(parts[1])));
-			String sub=payload.getString("sub");
-			sharedState.put("client-id", sub);
-			httpClient = HttpClient.newBuilder().build();
-			logger.info("Client Id:"+sub);
-			
-			HttpRequest request = HttpConnection.getRequest(this.config.urlValue()+sub);
+			sub=ParsedJwt.fromContext(context).getSubject();
+			if (sub == null)
+			{
+				throw new JSONException("No sub claim in the client assertion");
+			}
+			if (!sub.equals(sharedState.get("client-id").asString()))
+			{
+				sharedState.put("client-id", sub);
+				sharedStateChanged = true;
+			}
+			logger.debug("Client Id: {}", sub);
 			
-			HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
+			Boolean found = clientCache.lookup(sub);
+			if (found == null)
+			{
+				// Start the consent lookup now so it runs alongside the client check
+				if (this.config.prefetchConsent() && !this.config.resolveConsent())
+				{
+					consentCache.prefetch(sub, id -> consentLookup.fetch(this.config.consentUrlValue(), id));
+				}
+				
+				int status;
+				if (this.config.resolveConsent())
+				{
+					// One request for the client and its consent, left for the Consent Validation Node
+					ClientConsentLookup.Resolution resolution =
+							clientConsentLookup.resolve(this.config.resolutionUrlValue(), sub);
+					status = resolution.getStatus();
+					if (status==200)
+					{
+						context.transientState.put(ClientConsentLookup.TRANSIENT_KEY, resolution.toState());
+					}
+				}
+				else
+				{
+					status = clientLookup.status(this.config.urlValue(), sub);
+				}
+				
+				found = status!=404;
+				if (status==200)
+				{
+					clientCache.putFound(sub, this.config.cacheTtlSeconds());
+				}
+				else if (!found)
+				{
+					logger.debug("Client Not Found: {}",status);
+					clientCache.putNotFound(sub, this.config.negativeCacheTtlSeconds());
+				}
+			}
 			
-			if(response.statusCode()==404)
+			if (!found)
 			{
-				logger.debug("Client Not Found: {}",response);
 				throw new ClientNotFoundException("Client with Id: "+sub+" not found");
 			}
 			
 		} 
-		catch (JSONException | IOException | InterruptedException e) 
+		catch (JSONException | IllegalArgumentException | IOException | InterruptedException e) 
 		{
 			logger.error("Failed to validate client.", e.getMessage());
-			return goTo(false).build();
+			discardPrefetch(sub);
+			return finish(start, "client_lookup_failed", sub, goTo(false).build());
+		}
+
+		catch (EndpointUnavailableException e)
+		{
+			logger.error("Client lookup refused.", e.getMessage());
+			discardPrefetch(sub);
+			return finish(start, "endpoint_unavailable", sub, goTo(false).build());
 		}
 
 		catch(ClientNotFoundException e){
 			logger.error("Client Not Found", e.getMessage());
-			return goTo(false).build();
+			discardPrefetch(sub);
+			return finish(start, "client_not_found", sub, goTo(false).build());
 		}
 		
 		logger.info("Client is Valid");
-		return goTo(true).replaceSharedState(sharedState).build();
+		Action.ActionBuilder next = goTo(true).replaceTransientState(context.transientState);
+		return finish(start, "ok", sub, (sharedStateChanged ? next.replaceSharedState(sharedState) : next).build());
+
+	}
 
+	private Action finish(long start, String reason, String clientId, Action action) {
+		auditLog.record(AuditLog.Type.CLIENT, "true".equals(action.outcome), reason, clientId, null, null,
+				System.nanoTime() - start);
+		return stats.record(start, reason, action);
+	}
+
+	private void discardPrefetch(String sub) {
+		if (sub != null && this.config.prefetchConsent() && !this.config.resolveConsent()) {
+			consentCache.discardPrefetch(sub);
+		}
 	}
 }
\ No newline at end of file
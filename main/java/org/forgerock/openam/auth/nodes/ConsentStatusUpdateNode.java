@@ -1,7 +1,6 @@
 package org.forgerock.openam.auth.nodes;
 
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
@@ -10,13 +9,20 @@ import javax.inject.Inject;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentPatch;
+import org.forgerock.openam.auth.Utility.ConsentRecord;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.ConsentWriteBehind;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,55 +49,71 @@ public class ConsentStatusUpdateNode extends AbstractDecisionNode {
         {
         	return "http://localhost:8080/openidm/endpoint/consent?consentId=";
         }
-        
+
+        @Attribute(order=400)
+        default boolean writeBehind() { return false; }
+
     }
 	
 	private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ConsentStatusUpdateNode";
 	private final ConsentStatusUpdateNode.Config config;
+	private final HttpConnection httpConnection;
+	private final ConsentCache consentCache;
+	private final ConsentReplica consentReplica;
+	private final ConsentWriteBehind writeBehind;
+	private final NodeStats stats;
+	private final AuditLog auditLog;
     private final Logger logger = LoggerFactory.getLogger("amAuth");
 	
 	@Inject
-    public ConsentStatusUpdateNode(@Assisted ConsentStatusUpdateNode.Config config) {
+    public ConsentStatusUpdateNode(@Assisted ConsentStatusUpdateNode.Config config, HttpConnection httpConnection,
+            ConsentCache consentCache, ConsentReplica consentReplica, ConsentWriteBehind writeBehind,
+            NodeMetrics nodeMetrics,
+            AuditLog auditLog) {
         this.config = config;
+        this.httpConnection = httpConnection;
+        this.consentCache = consentCache;
+        this.consentReplica = consentReplica;
+        this.writeBehind = writeBehind;
+        this.stats = nodeMetrics.node("ConsentStatusUpdateNode");
+        this.auditLog = auditLog;
     }
 
     public String update() throws JSONException{
-        
-        LocalDateTime now = LocalDateTime.now();
-
-        JSONObject jsonObject1 = new JSONObject(); //updating status
-        JSONObject jsonObject2 = new JSONObject(); //updating status update time
-
-        JSONArray jsonArray = new JSONArray();
-
-        jsonObject1.put("operation", "replace");
-        jsonObject1.put("field", "/status");
-        jsonObject1.put("value", "active");
-
-        jsonObject2.put("operation", "replace");
-        jsonObject2.put("field", "/statusUpdateDateTime");
-        jsonObject2.put("value", now.toString());
-        
-        jsonArray.put(jsonObject1);
-        jsonArray.put(jsonObject2);
-
-        return jsonArray.toString();
+        return ConsentPatch.activate(LocalDateTime.now().toString());
     }
 
     @SuppressWarnings("deprecation")
 	@Override
 	public Action process(TreeContext context) {
+        long start = System.nanoTime();
         
         logger.info("Consent Status Update Node");
         
         String consentId = context.sharedState.get("consentId").asString();
-        logger.info("Consent Id: "+consentId);
+        logger.debug("Consent Id: {}", consentId);
         JsonValue sharedState = context.sharedState;
 
+        if (config.writeBehind()) {
+            ConsentRecord cached = consentCache.getByConsentId(consentId);
+            if (cached != null && "active".equalsIgnoreCase(cached.getStatus())) {
+                logger.info("Consent already active");
+                return finish(start, "already_active", context, consentId, goTo(true).build());
+            }
+            if (writeBehind.submit(config.urlValue(), consentId, LocalDateTime.now().toString())) {
+                consentCache.markActive(consentId, context.sharedState.get("client-id").asString());
+                consentReplica.markActive(consentId);
+                logger.info("Status update queued");
+                return finish(start, "queued", context, consentId, goTo(true).build());
+            }
+        }
+
         HttpRequest request;
         try {
+            URI uri = URI.create(this.config.urlValue() + consentId);
             request = HttpRequest.newBuilder()
-                    .uri(URI.create(this.config.urlValue() + consentId))
+                    .uri(uri)
+                    .timeout(HttpConnection.requestTimeout(uri))
                     .header("X-OpenIDM-Username", "openidm-admin")
                     .header("X-OpenIDM-Password", "openidm-admin")
                     .header("Content-Type", "application/json")
@@ -99,34 +121,46 @@ public class ConsentStatusUpdateNode extends AbstractDecisionNode {
                     .build();
        
 
-        HttpResponse<String> response = null;
+        HttpResponse<Void> response = null;
 
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+            response = httpConnection.send(request, HttpResponse.BodyHandlers.discarding());
 
             if(response.statusCode()==400){
                 logger.debug("Invalid Response, consentId may not be valid: {}",response);
-                return goTo(false).build();
+                return finish(start, "bad_request", context, consentId, goTo(false).build());
             }
             else if(response.statusCode()==404){
-                logger.debug("Consent with id "+consentId+" not found");
-                return goTo(false).build();
+                logger.debug("Consent with id {} not found", consentId);
+                return finish(start, "consent_not_found", context, consentId, goTo(false).build());
+            }
+            else if(response.statusCode()<200 || response.statusCode()>=300){
+                logger.error("IDM rejected the status update of consent {} with HTTP {}", consentId,
+                        response.statusCode());
+                return finish(start, "update_rejected", context, consentId, goTo(false).build());
             }
 
-            JSONObject obj = new JSONObject(response.body());
-            logger.info(obj.toString());
+            // Only a 2xx means IDM changed the status
+            consentCache.markActive(consentId, context.sharedState.get("client-id").asString());
+            consentReplica.markActive(consentId);
             
         } 
         catch(JSONException e){
             logger.error("Failed to read JSON Object",e.getMessage());
-            return goTo(false).build();
+            return finish(start, "invalid_response", context, consentId, goTo(false).build());
         }
         catch (Exception e) {
             logger.error("Failed to update Consent Status",e.getMessage());
-            return goTo(false).build();
+            return finish(start, "update_failed", context, consentId, goTo(false).build());
         }
         logger.info("Status Updated");
-        return goTo(true).build();
+        return finish(start, "ok", context, consentId, goTo(true).build());
+
+    }
 
+    private Action finish(long start, String reason, TreeContext context, String consentId, Action action) {
+        auditLog.record(AuditLog.Type.CONSENT_UPDATE, "true".equals(action.outcome), reason,
+                context.sharedState.get("client-id").asString(), consentId, null, System.nanoTime() - start);
+        return stats.record(start, reason, action);
     }
 
     
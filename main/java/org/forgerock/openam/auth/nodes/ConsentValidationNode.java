@@ -1,26 +1,25 @@
 package org.forgerock.openam.auth.nodes;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.Exception.ConsentIdNotFoundException;
-import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ClientConsentLookup;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentLookup;
+import org.forgerock.openam.auth.Utility.ConsentRecord;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
+import org.forgerock.openam.auth.Utility.TimeSource;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,84 +48,104 @@ public class ConsentValidationNode extends AbstractDecisionNode {
         {
         	return "http://localhost:8080/openidm/endpoint/consent?clientId=";
         }
+
+        @Attribute(order = 400)
+        default int cacheTtlSeconds() { return 300; }
+
+        @Attribute(order = 500)
+        default int refreshAheadSeconds() { return 60; }
+
+        @Attribute(order = 600)
+        default int replicaMaxLagSeconds() { return 0; }
         
     }
 	
 	private static final String BUNDLE = "org/forgerock/openam/auth/nodes/ConsentValidationNode";
 	private final ConsentValidationNode.Config config;
+	private final ConsentLookup consentLookup;
+	private final ConsentCache consentCache;
+	private final ConsentReplica consentReplica;
+	private final NodeStats stats;
+	private final AuditLog auditLog;
+	private final TimeSource clock;
     private final Logger logger = LoggerFactory.getLogger("amAuth");
 	
 	@Inject
-    public ConsentValidationNode(@Assisted ConsentValidationNode.Config config) {
+    public ConsentValidationNode(@Assisted ConsentValidationNode.Config config, ConsentLookup consentLookup,
+            ConsentCache consentCache, ConsentReplica consentReplica, NodeMetrics nodeMetrics, AuditLog auditLog,
+            TimeSource clock) {
         this.config = config;
-    }
-
-    private static LocalDateTime getDateTimeFromString(String dateString) {
-        // Sample DateTime Mon Jul 03 2023 18:14:09 GMT+0530 (IST)
-
-        // Define the format pattern to match the input string
-        // DateTimeFormatter formatter = DateTimeFormatter.ISO_INSTANT;
-
-        // Parse the string into a ZonedDateTime
-        ZonedDateTime zonedDateTime = ZonedDateTime.parse(dateString);
-
-        // Set the time zone to India
-        ZoneId indiaZone = ZoneId.of("Asia/Kolkata");
-        ZonedDateTime indiaDateTime = zonedDateTime.withZoneSameInstant(indiaZone);
-
-        // Convert the ZonedDateTime to LocalDateTime
-        LocalDateTime localDateTime = indiaDateTime.toLocalDateTime();
-        return localDateTime;
+        this.consentLookup = consentLookup;
+        this.consentCache = consentCache;
+        this.consentReplica = consentReplica;
+        this.stats = nodeMetrics.node("ConsentValidationNode");
+        this.auditLog = auditLog;
+        this.clock = clock;
     }
     
     @SuppressWarnings("deprecation")
 	@Override
 	public Action process(TreeContext context) {
+        long start = System.nanoTime();
 		
         logger.info("Consent Validation Node");
 
         String clientId = context.sharedState.get("client-id").asString();
-        logger.info("Client Id: "+clientId);
+        logger.debug("Client Id: {}", clientId);
         JsonValue sharedState = context.sharedState;
-
-        HttpRequest request = HttpConnection.getRequest(this.config.urlValue() + clientId);
-
-        HttpResponse<String> response = null;
+        String consentId = null;
+        boolean sharedStateChanged = false;
 
         try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+            // Use the consent the Client Validation Node resolved along with the client, if any
+            ConsentRecord consent = ClientConsentLookup.fromTransientState(context.transientState, clientId);
 
-            JSONObject obj = new JSONObject(response.body());
-            JSONArray arr = obj.getJSONArray("ClientDetails");
+            // Otherwise answer from the local replica while it is fresh enough, or ask IDM
+            if (consent == null && this.config.replicaMaxLagSeconds() > 0) {
+                consent = consentReplica.get(clientId, TimeUnit.SECONDS.toMillis(this.config.replicaMaxLagSeconds()));
+            }
+            if (consent == null) {
+                consent = consentCache.get(clientId,
+                        id -> consentLookup.fetch(this.config.urlValue(), id),
+                        TimeUnit.SECONDS.toMillis(this.config.cacheTtlSeconds()),
+                        TimeUnit.SECONDS.toMillis(this.config.refreshAheadSeconds()));
+            }
 
-            String consentId = arr.getJSONObject(0).getString("_id");
+            consentId = consent.getConsentId();
             if(consentId==null || consentId.isEmpty()){
                 logger.debug("No Consent Id found for the client: {}",consentId);
                 throw new ConsentIdNotFoundException("Consent Id: "+consentId+" not found");
             }
             //Storing Consent Id in Consent State
-            sharedState.put("consentId", consentId);
+            if (!consentId.equals(sharedState.get("consentId").asString())) {
+                sharedState.put("consentId", consentId);
+                sharedStateChanged = true;
+            }
 
-            //Expiry Validation of Consent
-            String consentExpiryDateTime = arr.getJSONObject(0).getString("consentExpiryDateTime");
-            
-            if (LocalDateTime.now().compareTo(getDateTimeFromString(consentExpiryDateTime))>=0) {
-                System.out.println("Expired Consent");
+            //Expiry Validation of Consent, parsed once when the consent was loaded
+            if (consent.getExpiresAtMillis() <= clock.currentTimeMillis()) {
                 logger.info("Expired Consent");
-                return goTo(false).build();
+                return finish(start, "consent_expired", clientId, consentId, goTo(false).build());
             }
 
         } 
         catch(ConsentIdNotFoundException e){
             logger.error("Consent Not Found", e.getMessage());
-            return goTo(false).build();
+            return finish(start, "consent_not_found", clientId, consentId, goTo(false).build());
         }
         catch (Exception e) {
             logger.error("Failed to validate consent", e.getMessage());
-            return goTo(false).build();
+            return finish(start, "consent_lookup_failed", clientId, consentId, goTo(false).build());
         }
         logger.info("Success"); 
-        return goTo(true).replaceSharedState(sharedState).build();
+        return finish(start, "ok", clientId, consentId,
+                sharedStateChanged ? goTo(true).replaceSharedState(sharedState).build() : goTo(true).build());
+    }
+
+    private Action finish(long start, String reason, String clientId, String consentId, Action action) {
+        auditLog.record(AuditLog.Type.CONSENT, "true".equals(action.outcome), reason, clientId, consentId, null,
+                System.nanoTime() - start);
+        return stats.record(start, reason, action);
     }
 
     
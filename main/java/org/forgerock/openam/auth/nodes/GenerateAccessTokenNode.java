@@ -1,24 +1,20 @@
 package org.forgerock.openam.auth.nodes;
 
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
-
 import javax.inject.Inject;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.Exception.AccessTokenGenerationException;
-import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.HttpTokenIssuer;
+import org.forgerock.openam.auth.Utility.InProcessTokenIssuer;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
+import org.forgerock.openam.auth.Utility.TokenIssuer;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,8 +31,6 @@ import com.google.inject.assistedinject.Assisted;
                 configClass = GenerateAccessTokenNode.Config.class)
 public class GenerateAccessTokenNode extends AbstractDecisionNode {
 
-    final Map<String,String> params = new HashMap<String,String>();
-    
 	public interface Config {
         @Attribute(order = 100)
         default String variable() { return "variable"; }
@@ -56,71 +50,85 @@ public class GenerateAccessTokenNode extends AbstractDecisionNode {
         {
         	return "ClientSecret";
         }
+        @Attribute(order=600)
+        default TokenIssuanceMode tokenIssuanceMode()
+        {
+        	return TokenIssuanceMode.HTTP;
+        }
+    }
+
+    /**
+     * How the authorization code is exchanged for an access token.
+     */
+    public enum TokenIssuanceMode {
+        /** POST to the configured access_token URL. */
+        HTTP,
+        /** Call AM's OAuth2 token service directly, falling back to HTTP if it is not available. */
+        IN_PROCESS
     }
 	
 	private static final String BUNDLE = "org/forgerock/openam/auth/nodes/GenerateAccessTokenNode";
 	private final GenerateAccessTokenNode.Config config;
+	private final TokenIssuer tokenIssuer;
+	private final NodeStats stats;
+	private final AuditLog auditLog;
     private final Logger logger = LoggerFactory.getLogger("amAuth");
     
 	
 	@Inject
-    public GenerateAccessTokenNode(@Assisted GenerateAccessTokenNode.Config config) {
+    public GenerateAccessTokenNode(@Assisted GenerateAccessTokenNode.Config config, HttpTokenIssuer httpTokenIssuer,
+            InProcessTokenIssuer inProcessTokenIssuer, NodeMetrics nodeMetrics, AuditLog auditLog) {
         this.config = config;
+        this.tokenIssuer = config.tokenIssuanceMode() == TokenIssuanceMode.IN_PROCESS
+                ? inProcessTokenIssuer : httpTokenIssuer;
+        this.stats = nodeMetrics.node("GenerateAccessTokenNode");
+        this.auditLog = auditLog;
     }
 
     @SuppressWarnings("deprecation")
 	@Override
 	public Action process(TreeContext context) {
+        long start = System.nanoTime();
 	    
         logger.info("Generate Access Token Node");
         
-        String authCode = context.sharedState.get("authorizationCode").asString();
+        // Left in transient state by the Client Assertion Validator Node; older trees kept it in shared state
+        String authCode = context.transientState.get("authorizationCode").asString();
+        if (authCode == null) {
+            authCode = context.sharedState.get("authorizationCode").asString();
+        }
         
-        logger.info("Auth Code is: "+ authCode);
-		// Access the shared state
-        JsonValue sharedState = context.sharedState;   
+        JsonValue transientState = context.transientState;
 
-        String url = this.config.urlValue();
-        String clientId = this.config.clientId();
-        String clientSecret = this.config.clientSecret();
-        String authorization = clientId + ":" + clientSecret;
-        String encodedAuthorization = Base64.getEncoder().encodeToString(authorization.getBytes(StandardCharsets.UTF_8));
-        String grantType = "authorization_code";
         String accessToken;
         try {
-
-            String data = "grant_type=" + grantType + "&code=" + authCode;
-
-            Map<String, String> headers = new HashMap<>();
-            headers.put("Content-Type", "application/x-www-form-urlencoded");
-            headers.put("Authorization", "Basic " + encodedAuthorization);
-
-            HttpRequest request = HttpConnection.sendRequest(url + "?" + data, "POST", headers, null);
-            HttpResponse<String> response = HttpClient.newBuilder().build().send(request, HttpResponse.BodyHandlers.ofString());
-
-            JSONObject body = new JSONObject(response.body());
-            accessToken = body.get("access_token").toString();
-
-            logger.info("Response: " + response.body());
+            accessToken = tokenIssuer.issue(this.config.urlValue(), this.config.clientId(),
+                    this.config.clientSecret(), authCode);
 
             if (accessToken == null) {
                 throw new AccessTokenGenerationException("Access token generation failed");
             }
-            // Store data in the shared state
-            sharedState.put("accessToken", accessToken);
+            // The session property carries the token on; transient state keeps it out of the serialized state
+            transientState.put("accessToken", accessToken);
             
-			logger.debug("Access Token: {}",accessToken);    
         } 
         catch(AccessTokenGenerationException e){
             logger.error("Access token generation failed", e.getMessage());
-            return goTo(false).build();
+            return finish(start, "token_not_issued", authCode, goTo(false).build());
         }
         catch (Exception e) {
             logger.error("Invalid Access Token",e.getMessage());
-            return goTo(false).build();
+            return finish(start, "token_request_failed", authCode, goTo(false).build());
         }
         
-        return goTo(true).putSessionProperty("access_token", accessToken).replaceSharedState(sharedState).build();
+        return finish(start, "ok", accessToken,
+                goTo(true).putSessionProperty("access_token", accessToken).replaceTransientState(transientState).build());
         
 	}
+
+    private Action finish(long start, String reason, String secret, Action action) {
+        auditLog.record(AuditLog.Type.ACCESS_TOKEN, "true".equals(action.outcome), reason, this.config.clientId(),
+                null, secret, System.nanoTime() - start);
+        return stats.record(start, reason, action);
+    }
 }
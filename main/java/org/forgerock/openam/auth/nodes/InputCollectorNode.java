@@ -25,6 +25,8 @@ package org.forgerock.openam.auth.nodes;
 
 import com.google.inject.assistedinject.Assisted;
 import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.NodeStats;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
@@ -67,19 +69,28 @@ public class InputCollectorNode extends SingleOutcomeNode {
     private final Logger logger = LoggerFactory.getLogger("amAuth");
 
     private final InputCollectorNode.Config config;
+    private final NodeStats stats;
 
     /**
      * Constructs a new SetSessionPropertiesNode instance.
      * @param config Node configuration.
+     * @param nodeMetrics Records the node's latency and outcomes.
      */
     @Inject
-    public InputCollectorNode(@Assisted InputCollectorNode.Config config) {
+    public InputCollectorNode(@Assisted InputCollectorNode.Config config, NodeMetrics nodeMetrics) {
         this.config = config;
+        this.stats = nodeMetrics.node("InputCollectorNode");
     }
 
 
     @Override
     public Action process(TreeContext context) {
+        long start = System.nanoTime();
+        Action action = collect(context);
+        return stats.record(start, action.outcome == null ? "prompted" : "collected", action);
+    }
+
+    private Action collect(TreeContext context) {
 
         String prompt = config.prompt();
         if ((prompt.indexOf("{{") == 0) && (prompt.indexOf("}}") == (prompt.length()-2))) {
@@ -97,11 +108,11 @@ public class InputCollectorNode extends SingleOutcomeNode {
                     .map(password -> {
                         if (config.useTransient()) {
                             logger.debug("[InputCollectorNode]: Storing user password input in transient shared state " + config.variable());
-                            return goToNext().replaceTransientState(context.transientState.copy().put(config.variable(), password)).build();
+                            return goToNext().replaceTransientState(context.transientState.put(config.variable(), password)).build();
                         }
                         else {
                             logger.debug("[InputCollectorNode]: Storing user password input in shared state " + config.variable());
-                            return goToNext().replaceSharedState(context.sharedState.copy().put(config.variable(), password)).build();
+                            return store(context, password);
                         }
                     })
                     .orElseGet(() -> {
@@ -114,7 +125,7 @@ public class InputCollectorNode extends SingleOutcomeNode {
                     .map(NameCallback::getName)
                     .map(name -> {
                         logger.debug("[InputCollectorNode]: Storing user input in shared state " + config.variable());
-                        return goToNext().replaceSharedState(context.sharedState.copy().put(config.variable(), name)).build();
+                        return store(context, name);
                     })
                     .orElseGet(() -> {
                         logger.debug("[InputCollectorNode]: Sending name callback: " + promptName);
@@ -125,4 +136,15 @@ public class InputCollectorNode extends SingleOutcomeNode {
         }
 
     }
+
+    /**
+     * Puts the input into the context's shared state rather than a deep copy of it, and only hands the state
+     * back to AM when the value changed.
+     */
+    private Action store(TreeContext context, String value) {
+        if (value.equals(context.sharedState.get(config.variable()).asString())) {
+            return goToNext().build();
+        }
+        return goToNext().replaceSharedState(context.sharedState.put(config.variable(), value)).build();
+    }
 }
\ No newline at end of file
@@ -25,10 +25,21 @@ import static java.util.Arrays.asList;
 
 import javax.inject.Inject;
 
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.CacheReplicator;
+import org.forgerock.openam.auth.Utility.CoarseClock;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.ConsentWriteBehind;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.ReplayGuard;
+import org.forgerock.openam.auth.Utility.VerificationKeyStore;
+import org.forgerock.openam.auth.Utility.WarmUp;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.forgerock.util.thread.listener.ShutdownManager;
 
 import com.iplanet.sso.SSOException;
 import com.sun.identity.sm.SMSException;
@@ -39,14 +50,50 @@ import com.sun.identity.sm.SMSException;
 public class InputCollectorNodePlugin extends AbstractNodeAmPlugin {
 
     private final AnnotatedServiceRegistry serviceRegistry;
+    private final HttpConnection httpConnection;
+    private final VerificationKeyStore keyStore;
+    private final ReplayGuard replayGuard;
+    private final ConsentWriteBehind consentWriteBehind;
+    private final ConsentReplica consentReplica;
+    private final NodeMetrics nodeMetrics;
+    private final AuditLog auditLog;
+    private final CoarseClock clock;
+    private final CacheReplicator cacheReplicator;
+    private final WarmUp warmUp;
+    private final ShutdownManager shutdownManager;
 
     /**
      * DI-enabled constructor.
      * @param serviceRegistry A service registry instance.
+     * @param httpConnection The HTTP client factory shared by the nodes.
+     * @param keyStore The verification keys used by the client assertion validator.
+     * @param replayGuard The replay store of the client assertion validator.
+     * @param consentWriteBehind The background writer of consent status updates.
+     * @param consentReplica The local copy of IDM's consents.
+     * @param nodeMetrics The node and HTTP call metrics.
+     * @param auditLog The asynchronous audit event writer.
+     * @param clock The cached clock used for expiry checks.
+     * @param cacheReplicator Shares the caches with the other AM instances, when configured.
+     * @param warmUp Warms keys, parsers and IDM connections up before the nodes are registered.
+     * @param shutdownManager Used to release the shared resources when AM stops.
      */
     @Inject
-    public InputCollectorNodePlugin(AnnotatedServiceRegistry serviceRegistry) {
+    public InputCollectorNodePlugin(AnnotatedServiceRegistry serviceRegistry, HttpConnection httpConnection,
+            VerificationKeyStore keyStore, ReplayGuard replayGuard, ConsentWriteBehind consentWriteBehind,
+            ConsentReplica consentReplica, NodeMetrics nodeMetrics, AuditLog auditLog, CoarseClock clock,
+            CacheReplicator cacheReplicator, WarmUp warmUp, ShutdownManager shutdownManager) {
         this.serviceRegistry = serviceRegistry;
+        this.httpConnection = httpConnection;
+        this.keyStore = keyStore;
+        this.replayGuard = replayGuard;
+        this.consentWriteBehind = consentWriteBehind;
+        this.consentReplica = consentReplica;
+        this.nodeMetrics = nodeMetrics;
+        this.auditLog = auditLog;
+        this.clock = clock;
+        this.cacheReplicator = cacheReplicator;
+        this.warmUp = warmUp;
+        this.shutdownManager = shutdownManager;
     }
 
     @Override
@@ -56,6 +103,31 @@ public class InputCollectorNodePlugin extends AbstractNodeAmPlugin {
 
     @Override
     public void onStartup() throws PluginException {
+        clock.start();
+        cacheReplicator.start();
+        httpConnection.start();
+        keyStore.start();
+        replayGuard.start();
+        consentWriteBehind.start();
+        if (ConsentReplica.isEnabled()) {
+            consentReplica.start();
+        }
+        nodeMetrics.start();
+        auditLog.start();
+        shutdownManager.addShutdownListener(() -> {
+            auditLog.shutdown();
+            nodeMetrics.shutdown();
+            consentReplica.shutdown();
+            consentWriteBehind.shutdown();
+            replayGuard.shutdown();
+            keyStore.shutdown();
+            httpConnection.shutdown();
+            cacheReplicator.shutdown();
+            clock.shutdown();
+        });
+        if (WarmUp.isEnabled()) {
+            warmUp.run();
+        }
         for (Class<? extends Node> nodeClass : getNodes()) {
             pluginTools.registerAuthNode(nodeClass);
         }
@@ -0,0 +1,114 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class CacheReplicatorTest {
+
+    private static final String SECRET = "shared-secret";
+    private static final long SENDER = 42;
+
+    private final ManualClock clock = new ManualClock(1_000_000);
+    private final CacheReplicator replicator = new CacheReplicator(clock, "127.0.0.1:0", "127.0.0.1:9", SECRET,
+            10000, 10);
+    private final List<String> applied = new CopyOnWriteArrayList<>();
+
+    CacheReplicatorTest() {
+        replicator.register("consents", (op, key, ttlMillis, value) -> applied.add(op + " " + key));
+    }
+
+    @AfterEach
+    void shutdown() {
+        replicator.shutdown();
+    }
+
+    @Test
+    void appliesAnAuthenticDatagram() throws Exception {
+        assertTrue(receive(sign(SECRET, message(1, clock.currentTimeMillis()))));
+        assertEquals(List.of("INVALIDATE client-1"), applied);
+    }
+
+    @Test
+    void rejectsAForgedDatagram() throws Exception {
+        assertFalse(receive(sign("guessed-secret", message(1, clock.currentTimeMillis()))));
+
+        byte[] tampered = sign(SECRET, message(1, clock.currentTimeMillis()));
+        tampered[tampered.length - 40] ^= 1;
+        assertFalse(receive(tampered));
+        assertEquals(List.of(), applied);
+    }
+
+    @Test
+    void rejectsAReplayedDatagram() throws Exception {
+        byte[] datagram = sign(SECRET, message(2, clock.currentTimeMillis()));
+        assertTrue(receive(datagram));
+
+        assertFalse(receive(datagram));
+        assertFalse(receive(sign(SECRET, message(1, clock.currentTimeMillis()))));
+        assertTrue(receive(sign(SECRET, message(3, clock.currentTimeMillis()))));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    void rejectsAnExpiredDatagram() throws Exception {
+        byte[] datagram = sign(SECRET, message(1, clock.currentTimeMillis()));
+        clock.advance(10001, TimeUnit.MILLISECONDS);
+
+        assertFalse(receive(datagram));
+        assertFalse(receive(sign(SECRET, message(2, clock.currentTimeMillis() + 10001))));
+        assertEquals(List.of(), applied);
+    }
+
+    private boolean receive(byte[] datagram) throws Exception {
+        Mac mac = mac(SECRET);
+        byte[] buffer = Arrays.copyOf(datagram, 1400);
+        return replicator.receive(mac, buffer, datagram.length);
+    }
+
+    /**
+     * An invalidation of {@code client-1} in the {@code consents} cache, laid out as {@link CacheReplicator}
+     * writes it.
+     */
+    private static byte[] message(long sequence, long sentAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeLong(SENDER);
+        out.writeLong(sequence);
+        out.writeLong(sentAt);
+        out.writeUTF("consents");
+        out.writeByte(CacheReplicator.Op.INVALIDATE.ordinal());
+        out.writeUTF("client-1");
+        out.writeLong(0);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] sign(String secret, byte[] message) throws Exception {
+        byte[] signature = mac(secret).doFinal(message);
+        byte[] datagram = Arrays.copyOf(message, message.length + signature.length);
+        System.arraycopy(signature, 0, datagram, message.length, signature.length);
+        return datagram;
+    }
+
+    private static Mac mac(String secret) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return mac;
+    }
+}
@@ -0,0 +1,84 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+class ConsentReplicaTest {
+
+    /** A consent IDM has no readable {@code statusUpdateDateTime} for. */
+    private static final String PAGE = "{\"result\":[{\"_id\":\"consent-1\",\"clientId\":\"client-1\","
+            + "\"status\":\"AwaitingAuthorisation\",\"consentExpiryDateTime\":\"2099-01-01T00:00:00Z\"}]}";
+
+    private final ManualClock clock = new ManualClock(System.currentTimeMillis());
+    private final List<String> filters = new CopyOnWriteArrayList<>();
+    private final HttpServer server;
+    private final ConsentReplica replica;
+
+    ConsentReplicaTest() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/openidm/managed/Consent", this::query);
+        server.start();
+        System.setProperty("accesstoken.consent.replica.url",
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/openidm/managed/Consent");
+        replica = new ConsentReplica(new HttpConnection(), clock);
+    }
+
+    @AfterEach
+    void close() {
+        System.clearProperty("accesstoken.consent.replica.url");
+        server.stop(0);
+    }
+
+    @Test
+    void pollsIncrementallyWhenNoConsentHasAnUpdateTime() {
+        replica.sync();
+        clock.advance(5, TimeUnit.SECONDS);
+        replica.sync();
+        replica.sync();
+
+        assertEquals(1, replica.getFullSyncCount());
+        assertEquals(2, replica.getIncrementalSyncCount());
+        assertEquals("true", filters.get(0));
+        assertEquals(filters.get(1), filters.get(2));
+        assertTrue(filters.get(1).startsWith("statusUpdateDateTime ge "));
+        assertNotNull(replica.get("client-1", 60000));
+    }
+
+    @Test
+    void reloadsWhenAsked() {
+        replica.sync();
+        replica.resync();
+        replica.sync();
+
+        assertEquals(2, replica.getFullSyncCount());
+        assertEquals(0, replica.getIncrementalSyncCount());
+    }
+
+    private void query(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        filters.add(URLDecoder.decode(query.substring("_queryFilter=".length(), query.indexOf('&')),
+                StandardCharsets.UTF_8));
+        byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
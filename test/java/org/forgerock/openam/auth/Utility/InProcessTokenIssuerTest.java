@@ -0,0 +1,31 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class InProcessTokenIssuerTest {
+
+    @Test
+    void readsTheRootRealm() {
+        assertEquals("/", InProcessTokenIssuer.realm("https://am.example.com/am/oauth2/realms/root/access_token"));
+        assertEquals("/", InProcessTokenIssuer.realm("https://am.example.com/am/oauth2/access_token"));
+    }
+
+    @Test
+    void readsANestedRealm() {
+        assertEquals("/alpha", InProcessTokenIssuer.realm(
+                "https://am.example.com/am/oauth2/realms/root/realms/alpha/access_token"));
+        assertEquals("/alpha/bravo", InProcessTokenIssuer.realm(
+                "https://am.example.com/am/oauth2/realms/root/realms/alpha/realms/bravo/access_token"));
+    }
+
+    @Test
+    void ignoresATrailingSlash() {
+        assertEquals("/alpha", InProcessTokenIssuer.realm(
+                "https://am.example.com/am/oauth2/realms/root/realms/alpha/access_token/"));
+        assertEquals("/alpha",
+                InProcessTokenIssuer.realm("https://am.example.com/am/oauth2/realms/root/realms/alpha/"));
+        assertEquals("/", InProcessTokenIssuer.realm("https://am.example.com/am/oauth2/realms/root/"));
+    }
+}
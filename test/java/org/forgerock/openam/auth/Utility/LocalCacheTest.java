@@ -0,0 +1,103 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LocalCacheTest {
+
+    private final ManualClock clock = new ManualClock(1_000_000);
+
+    @Test
+    void returnsAnEntryUntilItsTimeToLiveHasPassed() {
+        LocalCache<String, String> cache = new LocalCache<>(10, clock);
+        cache.put("key", "value", 5000);
+
+        clock.advance(4999, TimeUnit.MILLISECONDS);
+        assertEquals("value", cache.getIfPresent("key"));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertNull(cache.getIfPresent("key"));
+        assertNull(cache.peek("key"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    void keepsATimeToLivePerEntry() {
+        LocalCache<String, String> cache = new LocalCache<>(10, clock);
+        cache.put("short", "value", 1000);
+        cache.put("long", "value", 60000);
+
+        clock.advance(30, TimeUnit.SECONDS);
+        assertNull(cache.getIfPresent("short"));
+        assertEquals("value", cache.getIfPresent("long"));
+    }
+
+    @Test
+    void restartsTheTimeToLiveWhenAnEntryIsReplaced() {
+        LocalCache<String, String> cache = new LocalCache<>(10, clock);
+        cache.put("key", "old", 1000);
+        clock.advance(900, TimeUnit.MILLISECONDS);
+        cache.put("key", "new", 1000);
+
+        clock.advance(900, TimeUnit.MILLISECONDS);
+        assertEquals("new", cache.getIfPresent("key"));
+    }
+
+    @Test
+    void evictsExpiredEntriesBeforeLiveOnes() {
+        LocalCache<String, String> cache = new LocalCache<>(2, clock);
+        cache.put("expiring", "value", 1000);
+        cache.put("live", "value", 60000);
+        clock.advance(2, TimeUnit.SECONDS);
+
+        cache.put("new", "value", 60000);
+        assertEquals("value", cache.getIfPresent("live"));
+        assertEquals("value", cache.getIfPresent("new"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    void skipsInvalidatedKeysWhenEvicting() {
+        LocalCache<String, String> cache = new LocalCache<>(2, clock);
+        cache.put("invalidated", "value", 60000);
+        cache.put("expiring", "value", 1000);
+        cache.invalidate("invalidated");
+        cache.put("live", "value", 60000);
+        clock.advance(2, TimeUnit.SECONDS);
+
+        cache.put("new", "value", 60000);
+        assertEquals("value", cache.getIfPresent("live"));
+        assertEquals("value", cache.getIfPresent("new"));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    void purgesInvalidatedKeysFromTheEvictionQueue() {
+        LocalCache<String, String> cache = new LocalCache<>(4, clock);
+        cache.put("kept", "value", 60000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key", "value", 60000);
+            cache.invalidate("key");
+        }
+
+        assertTrue(cache.queueLength() <= 1 + 4);
+        assertEquals("value", cache.getIfPresent("kept"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void ignoresEntriesWithoutATimeToLive() {
+        LocalCache<String, String> cache = new LocalCache<>(10, clock);
+        cache.put("key", "value", 0);
+
+        assertNull(cache.getIfPresent("key"));
+        assertEquals(0, cache.size());
+    }
+}
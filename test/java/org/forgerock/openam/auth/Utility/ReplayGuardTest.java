@@ -0,0 +1,58 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ReplayGuardTest {
+
+    private final ManualClock clock = new ManualClock(1_000_000);
+    private final ReplayGuard guard = new ReplayGuard(clock);
+
+    @AfterEach
+    void shutdown() {
+        guard.shutdown();
+    }
+
+    @Test
+    void rejectsAnAssertionUntilItExpires() {
+        long expiresAt = clock.currentTimeMillis() + 60000;
+        assertEquals(ReplayGuard.Result.ACCEPTED, guard.markUsed("client:jti", expiresAt));
+
+        clock.advance(59999, TimeUnit.MILLISECONDS);
+        assertEquals(ReplayGuard.Result.REPLAYED, guard.markUsed("client:jti", expiresAt));
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(ReplayGuard.Result.ACCEPTED, guard.markUsed("client:jti", expiresAt + 60000));
+        assertEquals(2, guard.getAcceptedCount());
+        assertEquals(1, guard.getReplayCount());
+    }
+
+    @Test
+    void forgetsAnInvalidSignatureAfterItsTimeToLive() {
+        guard.recordInvalid("hash");
+        assertTrue(guard.isKnownInvalid("hash"));
+
+        clock.advance(300, TimeUnit.SECONDS);
+        assertFalse(guard.isKnownInvalid("hash"));
+    }
+
+    @Test
+    void dropsExpiredAssertionsOnceTheWheelTurns() throws InterruptedException {
+        guard.markUsed("client:jti", clock.currentTimeMillis() + 5000);
+        assertEquals(1, guard.getTrackedAssertionCount());
+
+        // the wheel turns once a real second, reading the manual clock
+        clock.advance(10, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (guard.getTrackedAssertionCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, guard.getTrackedAssertionCount());
+    }
+}
@@ -0,0 +1,81 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    private static final long TICK = 1000;
+
+    private final ManualClock clock = new ManualClock(0);
+    private final Map<String, Long> reportedAt = new HashMap<>();
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK, clock.currentTimeMillis(),
+            (key, deadline) -> reportedAt.put(key, clock.currentTimeMillis()));
+
+    @Test
+    void reportsAKeyOnTheFirstTickAfterItsDeadline() {
+        wheel.schedule("key", 2500);
+
+        turnTo(2000);
+        assertTrue(reportedAt.isEmpty());
+
+        turnTo(3000);
+        assertEquals(3000L, reportedAt.get("key"));
+    }
+
+    @Test
+    void reportsAPastDeadlineOnTheNextTick() {
+        turnTo(5000);
+        wheel.schedule("key", 1000);
+
+        turnTo(6000);
+        assertEquals(6000L, reportedAt.get("key"));
+    }
+
+    @Test
+    void cascadesLongDeadlinesDownToTheirTick() {
+        long deadline = TimeUnit.HOURS.toMillis(5) + 500;
+        wheel.schedule("key", deadline);
+
+        turnTo(deadline - 500);
+        assertTrue(reportedAt.isEmpty());
+
+        turnTo(deadline + 500);
+        assertEquals(deadline + 500, reportedAt.get("key"));
+    }
+
+    @Test
+    void neverReportsEarlyNorMoreThanATickLate() {
+        Random random = new Random(1);
+        Map<String, Long> deadlines = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            long deadline = (long) Math.pow(10, random.nextDouble() * 8);
+            deadlines.put("key" + i, deadline);
+            wheel.schedule("key" + i, deadline);
+        }
+
+        turnTo(TimeUnit.DAYS.toMillis(2));
+        assertEquals(deadlines.size(), reportedAt.size());
+        deadlines.forEach((key, deadline) -> {
+            long at = reportedAt.get(key);
+            assertTrue(at >= deadline && at - deadline <= TICK, key + " due at " + deadline + " reported at " + at);
+        });
+    }
+
+    /**
+     * Turns the wheel one tick at a time, the way its owner's ticker does.
+     */
+    private void turnTo(long millis) {
+        while (clock.currentTimeMillis() < millis) {
+            clock.advance(TICK, TimeUnit.MILLISECONDS);
+            wheel.advance(clock.currentTimeMillis());
+        }
+    }
+}
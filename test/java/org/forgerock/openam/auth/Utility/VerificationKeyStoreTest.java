@@ -0,0 +1,59 @@
+package org.forgerock.openam.auth.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class VerificationKeyStoreTest {
+
+    private final VerificationKeyStore store = new VerificationKeyStore(new HttpConnection());
+
+    @Test
+    void skipsAKeyThatCannotBeRead() throws Exception {
+        JSONObject broken = jwk(SignatureAlgorithm.ES256, "broken").put("x", "not base64url!");
+        JSONObject truncated = jwk(SignatureAlgorithm.RS256, "truncated");
+        truncated.remove("n");
+
+        String jwks = jwks(jwk(SignatureAlgorithm.ES256, "good"), broken, truncated, "not a key").toString();
+
+        assertEquals(Collections.singleton("good"), store.parseJwks(jwks).keySet());
+    }
+
+    @Test
+    void skipsKeysSharingAKid() throws Exception {
+        JSONObject unnamed = jwk(SignatureAlgorithm.ES256, "unnamed");
+        unnamed.remove("kid");
+        JSONObject alsoUnnamed = jwk(SignatureAlgorithm.RS256, "also-unnamed");
+        alsoUnnamed.remove("kid");
+
+        String jwks = jwks(jwk(SignatureAlgorithm.ES256, "shared"), jwk(SignatureAlgorithm.RS256, "shared"),
+                unnamed, alsoUnnamed, jwk(SignatureAlgorithm.ES256, "good")).toString();
+
+        assertEquals(Set.of("good"), store.parseJwks(jwks).keySet());
+    }
+
+    private static JSONObject jwks(Object... keys) {
+        return new JSONObject().put("keys", new JSONArray(keys));
+    }
+
+    /**
+     * The JWK {@link TestAssertions#writeJwks} writes for a fresh key of the algorithm.
+     */
+    private static JSONObject jwk(SignatureAlgorithm algorithm, String kid) throws Exception {
+        Path file = TestAssertions.writeJwks(TestAssertions.keyPair(algorithm).getPublic(), kid);
+        try {
+            return new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8))
+                    .getJSONArray("keys").getJSONObject(0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
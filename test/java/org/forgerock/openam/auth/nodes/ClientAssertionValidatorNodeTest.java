@@ -0,0 +1,111 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.ManualClock;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.ParsedJwt;
+import org.forgerock.openam.auth.Utility.ReplayGuard;
+import org.forgerock.openam.auth.Utility.SignatureAlgorithm;
+import org.forgerock.openam.auth.Utility.TestAssertions;
+import org.forgerock.openam.auth.Utility.VerificationKeyStore;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+class ClientAssertionValidatorNodeTest {
+
+    private static final String CLIENT_A = "client-a";
+    private static final String CLIENT_B = "client-b";
+
+    private final ManualClock clock = new ManualClock(System.currentTimeMillis());
+    private final HttpConnection httpConnection = new HttpConnection();
+    private final KeyPair keyOfA;
+    private final Path jwks;
+    private final VerificationKeyStore keyStore;
+
+    ClientAssertionValidatorNodeTest() throws Exception {
+        keyOfA = SignatureAlgorithm.ES256.generateKeyPair();
+        jwks = TestAssertions.writeJwks(keyOfA.getPublic(), CLIENT_A);
+        System.setProperty("accesstoken.jwks.uri", jwks.toString());
+        keyStore = new VerificationKeyStore(httpConnection);
+        keyStore.start();
+    }
+
+    @AfterEach
+    void cleanUp() throws Exception {
+        keyStore.shutdown();
+        System.clearProperty("accesstoken.jwks.uri");
+        Files.deleteIfExists(jwks);
+    }
+
+    @Test
+    void acceptsAnAssertionSignedWithTheClientsOwnKey() throws Exception {
+        assertEquals("true", node(Collections.emptyMap()).process(context(CLIENT_A)).outcome);
+    }
+
+    @Test
+    void rejectsAnAssertionForAnotherClientSignedWithTheClientsOwnKey() throws Exception {
+        assertEquals("false", node(Collections.emptyMap()).process(context(CLIENT_B)).outcome);
+    }
+
+    @Test
+    void acceptsAKeyListedForTheClient() throws Exception {
+        assertEquals("true", node(Collections.singletonMap(CLIENT_B, CLIENT_A)).process(context(CLIENT_B)).outcome);
+    }
+
+    @Test
+    void acceptsAKeySharedByEveryClient() throws Exception {
+        assertEquals("true", node(Collections.singletonMap("*", CLIENT_A)).process(context(CLIENT_B)).outcome);
+    }
+
+    @Test
+    void sharesTheParsedAssertionWithTheLaterNodes() throws Exception {
+        TreeContext context = context(CLIENT_A);
+
+        node(Collections.emptyMap()).process(context);
+
+        Object shared = context.transientState.get(ParsedJwt.TRANSIENT_KEY).getObject();
+        assertInstanceOf(ParsedJwt.class, shared);
+        assertSame(shared, ParsedJwt.fromContext(context));
+    }
+
+    private ClientAssertionValidatorNode node(Map<String, String> clientKeys) {
+        return new ClientAssertionValidatorNode(new ClientAssertionValidatorNode.Config() {
+            @Override
+            public Map<String, String> clientKeys() {
+                return clientKeys;
+            }
+        }, keyStore, new ReplayGuard(clock), new NodeMetrics(httpConnection), new AuditLog(), clock);
+    }
+
+    /**
+     * A request carrying an assertion for the given client, signed with client A's key under A's {@code kid}.
+     */
+    private TreeContext context(String clientId) throws Exception {
+        String assertion = TestAssertions.sign(SignatureAlgorithm.ES256, keyOfA.getPrivate(), CLIENT_A, clientId,
+                clock.currentTimeSeconds() + 300);
+        ListMultimap<String, String> headers = ArrayListMultimap.create();
+        headers.put("code", "authorization-code");
+        headers.put("authorization", "Bearer " + assertion);
+        return new TreeContext(new JsonValue(new LinkedHashMap<String, Object>()),
+                new JsonValue(new LinkedHashMap<String, Object>()),
+                new ExternalRequestContext.Builder().headers(headers).build(), Collections.emptyList());
+    }
+}
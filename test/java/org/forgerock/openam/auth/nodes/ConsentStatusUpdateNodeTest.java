@@ -0,0 +1,108 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentRecord;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.ConsentWriteBehind;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.ManualClock;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.Utility.StubIdmServer;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ConsentStatusUpdateNodeTest {
+
+    private static final String CLIENT_ID = "client-1";
+    private static final String CONSENT_ID = "consent-1";
+    private static final String JOURNAL = "accesstoken.consent.writeBehind.journal";
+
+    private final ManualClock clock = new ManualClock(System.currentTimeMillis());
+    private final StubIdmServer server;
+    private final HttpConnection httpConnection = new HttpConnection();
+    private final ConsentCache consentCache = new ConsentCache(clock);
+    private final ConsentReplica consentReplica = new ConsentReplica(httpConnection, clock);
+    private final ConsentWriteBehind writeBehind = new ConsentWriteBehind(httpConnection, consentCache,
+            consentReplica);
+    private final Path journal;
+
+    ConsentStatusUpdateNodeTest() throws IOException {
+        server = StubIdmServer.start(0, 2);
+        journal = Files.createTempFile("consent-updates", ".journal");
+        consentCache.put(new ConsentRecord(CONSENT_ID, CLIENT_ID, "AwaitingAuthorisation", "2099-01-01T00:00:00Z"),
+                60000, 0);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        writeBehind.shutdown();
+        System.clearProperty(JOURNAL);
+        Files.deleteIfExists(journal);
+        server.close();
+    }
+
+    @Test
+    void marksTheConsentActiveWhenIdmAcceptsTheUpdate() {
+        assertEquals("true", node(false).process(context()).outcome);
+        assertEquals("active", consentCache.getByConsentId(CONSENT_ID).getStatus());
+    }
+
+    @Test
+    void leavesTheConsentAloneWhenIdmFailsTheUpdate() {
+        server.faults(StubIdmServer.Route.CONSENT_UPDATE).errorRate(1);
+
+        assertEquals("false", node(false).process(context()).outcome);
+        assertEquals("AwaitingAuthorisation", consentCache.getByConsentId(CONSENT_ID).getStatus());
+    }
+
+    @Test
+    void forgetsTheConsentWhenIdmRejectsAQueuedUpdate() throws InterruptedException {
+        System.setProperty(JOURNAL, journal.toString());
+        server.faults(StubIdmServer.Route.CONSENT_UPDATE).notFoundRate(1);
+
+        assertEquals("true", node(true).process(context()).outcome);
+        assertEquals("active", consentCache.getByConsentId(CONSENT_ID).getStatus());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consentCache.getByConsentId(CONSENT_ID) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNull(consentCache.getByConsentId(CONSENT_ID));
+    }
+
+    private ConsentStatusUpdateNode node(boolean queued) {
+        return new ConsentStatusUpdateNode(new ConsentStatusUpdateNode.Config() {
+            @Override
+            public String urlValue() {
+                return server.consentUpdateUrl();
+            }
+
+            @Override
+            public boolean writeBehind() {
+                return queued;
+            }
+        }, httpConnection, consentCache, consentReplica, writeBehind, new NodeMetrics(httpConnection),
+                new AuditLog());
+    }
+
+    private static TreeContext context() {
+        Map<String, Object> sharedState = new LinkedHashMap<>();
+        sharedState.put("client-id", CLIENT_ID);
+        sharedState.put("consentId", CONSENT_ID);
+        return new TreeContext(new JsonValue(sharedState), new JsonValue(new LinkedHashMap<String, Object>()),
+                new ExternalRequestContext.Builder().build(), Collections.emptyList());
+    }
+}
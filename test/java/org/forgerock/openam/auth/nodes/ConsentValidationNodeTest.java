@@ -0,0 +1,69 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.Utility.AuditLog;
+import org.forgerock.openam.auth.Utility.ClientConsentLookup;
+import org.forgerock.openam.auth.Utility.ConsentCache;
+import org.forgerock.openam.auth.Utility.ConsentLookup;
+import org.forgerock.openam.auth.Utility.ConsentReplica;
+import org.forgerock.openam.auth.Utility.HttpConnection;
+import org.forgerock.openam.auth.Utility.ManualClock;
+import org.forgerock.openam.auth.Utility.NodeMetrics;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.junit.jupiter.api.Test;
+
+class ConsentValidationNodeTest {
+
+    private static final String CLIENT_ID = "client-1";
+    private static final String EXPIRY = "2030-01-01T00:00:00Z";
+
+    private final ManualClock clock = new ManualClock(Instant.parse(EXPIRY).toEpochMilli());
+    private final ConsentValidationNode node;
+
+    ConsentValidationNodeTest() {
+        HttpConnection httpConnection = new HttpConnection();
+        node = new ConsentValidationNode(new ConsentValidationNode.Config() {
+        }, new ConsentLookup(httpConnection), new ConsentCache(clock), new ConsentReplica(httpConnection, clock),
+                new NodeMetrics(httpConnection), new AuditLog(), clock);
+    }
+
+    @Test
+    void acceptsAConsentUntilItExpires() {
+        clock.advance(-1, TimeUnit.MILLISECONDS);
+        assertEquals("true", node.process(context()).outcome);
+    }
+
+    @Test
+    void rejectsAConsentFromTheMomentItExpires() {
+        assertEquals("false", node.process(context()).outcome);
+
+        clock.advance(1, TimeUnit.DAYS);
+        assertEquals("false", node.process(context()).outcome);
+    }
+
+    /**
+     * A context holding the consent ClientValidationNode resolved, so no lookup is made.
+     */
+    private static TreeContext context() {
+        Map<String, Object> consent = new LinkedHashMap<>();
+        consent.put("clientId", CLIENT_ID);
+        consent.put("_id", "consent-1");
+        consent.put("status", "active");
+        consent.put("consentExpiryDateTime", EXPIRY);
+        Map<String, Object> sharedState = new LinkedHashMap<>();
+        sharedState.put("client-id", CLIENT_ID);
+        Map<String, Object> transientState = new LinkedHashMap<>();
+        transientState.put(ClientConsentLookup.TRANSIENT_KEY, consent);
+        return new TreeContext(new JsonValue(sharedState), new JsonValue(transientState),
+                new ExternalRequestContext.Builder().build(), Collections.emptyList());
+    }
+}